@@ -20,14 +20,21 @@
 #   * [done] uartsocket discovery over network
 #   * send uart data as multicast instead of tcp
 #   * connect uartsocket servers, sharing uarts
+#   * [done] one control connection managing many uarts by slots
 
 # Client:Ctrl <1---1> Serial
 #      ^
 #      |1
 #       -----------*> Client:Data
 #
+# Client:Ctrl <1---*> Client:Slot <1---1> Serial
+#                          ^
+#                          |1
+#                           -----------*> Client:Data
+#
 
 import sys
+import os
 import random
 import time
 import socket
@@ -46,10 +53,14 @@ g_data_clients = []
 g_uarts = []
 g_id = 0
 server = None
+unix_server = None
+g_unix_path = None
 g_running = True
 g_eth_recv_size = 8
 g_eth_poll = 1
 g_ser_recv_size = 1
+# inter-byte gap ending a burst for throughput profile, in character times
+g_ser_burst_gap = 4
 g_zombie_cmds = []
 g_auto_cmds = []
 
@@ -88,9 +99,22 @@ CMD_CONFIG_SERIAL_GET_CTS = "c"
 CMD_CONFIG_SERIAL_GET_DSR = "s"
 CMD_CONFIG_SERIAL_GET_RI = "i"
 CMD_CONFIG_SERIAL_GET_CD = "e"
+CMD_CONFIG_SERIAL_PROFILE = "L"
 CMD_QUERY = "Q"
+CMD_NEW_SLOT = "N"
+CMD_SLOT = "@"
 CMD_HELP = "?"
 
+# Leave socket and serial driver settings as they are
+PROFILE_DEFAULT = 0
+# Favour short round trips
+PROFILE_LATENCY = 1
+# Favour bulk transfers
+PROFILE_THROUGHPUT = 2
+PROFILE_THROUGHPUT_BUF_SIZE = 256*1024
+# max bytes joined from a queue into one write
+COALESCE_MAX = 64*1024
+
 BRDCST_HDR = "uartsocket"
 BRDCST_QUERY_TAIL = "?"
 BRDCST_REPLY_TAIL = "!"
@@ -106,6 +130,13 @@ def out_nonl(s):
     sys.stdout.write(s)
     sys.stdout.flush()
 
+def peername(sock):
+  """ returns (host, port) of peer, unix domain socket peers have no address """
+  p = sock.getpeername()
+  if isinstance(p, tuple):
+    return p
+  return ("unix", -1)
+
 def dbg(s):
   """ debug output """
   if (g_running):
@@ -129,6 +160,8 @@ def drop_dead():
     except:
       pass
     client.socket.close()
+  if unix_server:
+    unix_server.shutdown()
   server.shutdown()
 
 def finalize_client(client):
@@ -136,6 +169,13 @@ def finalize_client(client):
   dbg("client {:d} exited - cleanup".format(client.id))
   if client.type == CLIENT_CTRL:
     dbg("  client {:d} is control".format(client.id))
+    for slot in list(client.slots):
+      finalize_client(slot)
+    if client.owner:
+      try:
+        client.owner.slots.remove(client)
+      except ValueError:
+        pass
     for data_client in client.data_clients_r:
       try:
         dbg("    client {:d} is attached and stopped".format(data_client.id))
@@ -179,11 +219,61 @@ def finalize_client(client):
   dbg("client {:d} exit done".format(client.id))
 
 
+def set_socket_option(sock, level, name, value):
+  """ sets one socket option, ignores it if not applicable to socket,
+      e.g. TCP_NODELAY on a unix domain socket """
+  try:
+    sock.setsockopt(level, name, value)
+  except (OSError, AttributeError):
+    pass
+
+def set_socket_profile(sock, profile):
+  """ sets socket options for given profile, ignores options not applicable to socket """
+  if profile == PROFILE_LATENCY:
+    set_socket_option(sock, socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+  elif profile == PROFILE_THROUGHPUT:
+    set_socket_option(sock, socket.IPPROTO_TCP, socket.TCP_NODELAY, 0)
+    set_socket_option(sock, socket.SOL_SOCKET, socket.SO_SNDBUF, PROFILE_THROUGHPUT_BUF_SIZE)
+    set_socket_option(sock, socket.SOL_SOCKET, socket.SO_RCVBUF, PROFILE_THROUGHPUT_BUF_SIZE)
+
+def queue_get_all(q):
+  """ waits for data on queue and joins it with whatever else is queued,
+      so that bursts are written by one call """
+  data = q.get(True, 1.0)
+  while len(data) < COALESCE_MAX:
+    try:
+      data += q.get_nowait()
+    except queue.Empty:
+      break
+  return data
+
+def serial_read_burst(uart, ser_data):
+  """ keeps reading while bytes keep coming, until receive size or a gap """
+  gap = max(0.001, g_ser_burst_gap * 10.0 / uart.ctrl_client.ser_baudrate)
+  last = time.time()
+  while uart.running and len(ser_data) < g_ser_recv_size:
+    waiting = uart.serial.in_waiting
+    if waiting > 0:
+      ser_data += uart.serial.read(min(waiting, g_ser_recv_size - len(ser_data)))
+      last = time.time()
+    elif time.time() - last >= gap:
+      break
+    else:
+      time.sleep(gap / 4)
+  return ser_data
+
 def serial_rx(uart):
   """ thread serial rx """
   while g_running and uart.running:
     try:
-      ser_data = uart.serial.read(g_ser_recv_size)
+      ser_data = uart.serial.read(1)
+      if len(ser_data) > 0 and g_ser_recv_size > 1:
+        if uart.ctrl_client.ser_profile == PROFILE_THROUGHPUT:
+          ser_data = serial_read_burst(uart, ser_data)
+        else:
+          waiting = uart.serial.in_waiting
+          if waiting > 0:
+            ser_data += uart.serial.read(min(waiting, g_ser_recv_size - 1))
     except serial.serialutil.SerialException as e:
       uart.ctrl_client.error("serial:{}".format(str(e)))
       uart.ctrl_client.running = False
@@ -202,7 +292,7 @@ def serial_tx(uart):
   """ thread serial tx """
   while g_running and uart.running:
     try:
-      eth_data = uart.q_eth2ser.get(True, 1.0)
+      eth_data = queue_get_all(uart.q_eth2ser)
       lldbg("  ser{:s}<-{:s}".format(uart.name, str(eth_data)))
       uart.serial.write(eth_data)
       for data_client in uart.ctrl_client.data_clients_t:
@@ -293,6 +383,15 @@ class Uart:
     ("dtr", self.ctrl_client.ser_dtr)
     ]))
 
+  def set_profile(self, profile):
+    """ sets serial driver low latency flag, if supported by platform """
+    if profile == PROFILE_DEFAULT or not hasattr(self.serial, "set_low_latency_mode"):
+      return
+    try:
+      self.serial.set_low_latency_mode(profile == PROFILE_LATENCY)
+    except (OSError, ValueError, serial.serialutil.SerialException) as e:
+      dbg("could not set low latency mode on {:s}: {}".format(self.name, str(e)))
+
   def setRTS(self, x):
     self.serial.setRTS(x)
 
@@ -312,14 +411,19 @@ class Uart:
     return self.serial.ri
 
 class Client(threading.Thread):
-  """ class: client """
-  def __init__(self, request_handler):
+  """ class: client, a slot if owner is given """
+  def __init__(self, request_handler, owner = None):
     global g_id
     threading.Thread.__init__(self)
     self.id = g_id
     g_id = g_id + 1
     self.running = True
-    if request_handler == None:
+    self.owner = owner
+    self.slots = []
+    if owner != None:
+      # a slot answers via owner, and needs no thread as it never sends data
+      self.socket = owner.socket
+    elif request_handler == None:
       self.socket = ZombieSocket()
       self.running = False
     else:
@@ -343,21 +447,23 @@ class Client(threading.Thread):
     self.ser_dsrdtr = False
     self.ser_rts = None
     self.ser_dtr = None
+    self.ser_profile = PROFILE_DEFAULT
     self.zeroes = 0
-    dbg("client {:d} entered [{:s}:{:d}]".format(self.id, self.socket.getpeername()[0], self.socket.getpeername()[1]))
-    self.start()
+    dbg("client {:d} entered [{:s}:{:d}]".format(self.id, peername(self.socket)[0], peername(self.socket)[1]))
+    if owner == None:
+      self.start()
 
   def run(self):
     """ thread serial rx queue reader """
     while self.running:
       try:
-        ser_data = self.q_ser2eth.get(True, 1.0)
+        ser_data = queue_get_all(self.q_ser2eth)
         self.socket.sendall(ser_data)
       except queue.Empty:
         pass
       
   def client_kill(self):
-    if not self.running:
+    if not self.running or self.owner != None:
       finalize_client(self)
     else:
       self.running = False
@@ -369,7 +475,9 @@ class Client(threading.Thread):
   def echo_client(self, client):
     """ echo client info to peer """
     if client.type == CLIENT_CTRL:
-      self.echo(str("C{:d}\t[{:s}:{:d}]".format(client.id, client.socket.getpeername()[0], client.socket.getpeername()[1])))
+      self.echo(str("C{:d}\t[{:s}:{:d}]".format(client.id, peername(client.socket)[0], peername(client.socket)[1])))
+      if client.owner:
+        self.echo(str("\tslot:C") + str(client.owner.id))
       if client.uart:
         self.echo(str("\tuart:") + str(client.uart.name) + str("\t") + \
                   str("baud:") + str(client.ser_baudrate) + str("\t") + \
@@ -386,7 +494,7 @@ class Client(threading.Thread):
         self.echo(str("\tattachees:") + str(len(client.data_clients_r) + len(client.data_clients_t)))
       self.echo(str("\n"))
     else:
-      self.echo(str("D{:d}\t[{:s}:{:d}]".format(client.id, client.socket.getpeername()[0], client.socket.getpeername()[1])))
+      self.echo(str("D{:d}\t[{:s}:{:d}]".format(client.id, peername(client.socket)[0], peername(client.socket)[1])))
       if client.type == CLIENT_DATA_RX:
         self.echo(str("\trx"))
       elif client.type == CLIENT_DATA_TX:
@@ -447,6 +555,8 @@ class Client(threading.Thread):
     self.echo(CMD_QUERY            + " <sec>      scan network for other uartsockets\n")
     self.echo(CMD_IDENTIFY         + "            returns this channels' id\n")
     self.echo(CMD_ATTACH           + " <n> (R|T)  attaches this channel to given channel, making this channel a full duplex data channel, or an Rx/Tx sniff channel\n")
+    self.echo(CMD_NEW_SLOT         + "            creates a slot owned by this channel and returns its id, data channels attach to slots as to channels\n")
+    self.echo(CMD_SLOT             + " <n> <cmd>  passes command to given slot, e.g. to open, configure or close (" + CMD_CLIENT_SHUTDOWN + ") its serial port\n")
     self.echo(CMD_LIST_CHANNELS    + "            lists all control and data channels\n")
     self.echo(CMD_LIST_SERIALS     + " (*)        lists serial ports, gives extra info if non-empty argument\n")
     self.echo(CMD_LIST_OPEN_SERIALS+ "            lists opened ports by channel id and associated serial port\n")
@@ -469,6 +579,7 @@ class Client(threading.Thread):
     self.echo("  " + CMD_CONFIG_SERIAL_GET_DSR  + "            returns serial dsr line state\n")
     self.echo("  " + CMD_CONFIG_SERIAL_GET_RI   + "            returns serial ri line state\n")
     self.echo("  " + CMD_CONFIG_SERIAL_GET_CD   + "            returns serial cd line state\n")
+    self.echo("  " + CMD_CONFIG_SERIAL_PROFILE  + "<prof>      sets profile, 0 default, 1 low latency, 2 throughput\n")
 
   def on_command(self, cmd_str):
     """ handle ctrl command from peer """
@@ -516,8 +627,12 @@ class Client(threading.Thread):
       other_id = int(arg)
       if other_id == self.id:
         self.error("cannot attach to self")
+      elif self.owner != None:
+        self.error("slot cannot be attached")
       elif len(self.data_clients_r) + len(self.data_clients_t) > 0:
         self.error("have attachees")
+      elif len(self.slots) > 0:
+        self.error("have slots")
       else:
         data_type = CLIENT_DATA_RXTX
         if arg2 != None:
@@ -543,6 +658,7 @@ class Client(threading.Thread):
             g_ctrl_clients.remove(self)
             g_data_clients.append(self)
             self.type = data_type
+            set_socket_profile(self.socket, ctrl_client.ser_profile)
             self.ok()
             return
         self.error("no such channel")
@@ -598,12 +714,35 @@ class Client(threading.Thread):
 
       self.uart = Uart(self, arg, exclusive)
       self.uart.open()
+      self.uart.set_profile(self.ser_profile)
       g_uarts.append(self.uart)
       self.ok()
 
     elif cmd == CMD_CONFIG_SERIAL:
       self.config_serial(cmds[1:])
 
+    elif cmd == CMD_NEW_SLOT:
+      if self.owner != None:
+        self.error("slot cannot own slots")
+        return
+      slot = Client(None, self)
+      self.slots.append(slot)
+      g_ctrl_clients.append(slot)
+      self.echo("{}\n".format(slot.id))
+      self.ok()
+
+    elif cmd == CMD_SLOT:
+      slot = None
+      if arg != None and arg2 != None:
+        for s in self.slots:
+          if s.id == int(arg):
+            slot = s
+            break
+      if slot == None:
+        self.error("no such slot")
+      else:
+        slot.on_command(" ".join(cmds[2:]))
+
     elif cmd == CMD_HELP:
       self.help()
       self.ok()
@@ -766,6 +905,14 @@ class Client(threading.Thread):
           self.error("unknown line state (0,1,-)")
           ok = 0
 
+      elif cmd == CMD_CONFIG_SERIAL_PROFILE:
+        if arg in ("0", "1", "2"):
+          self.ser_profile = int(arg)
+          self.apply_profile()
+        else:
+          self.error("unknown profile (0,1,2)")
+          ok = 0
+
       elif cmd == CMD_CONFIG_SERIAL_GET_CD:
         if self.uart != None:
           self.echo(str(1 if self.uart.readCD() else 0) + "\n")
@@ -802,6 +949,13 @@ class Client(threading.Thread):
     if ok == 1:
       self.ok()
 
+  def apply_profile(self):
+    """ applies profile to serial and to all attached data channels """
+    if self.uart:
+      self.uart.set_profile(self.ser_profile)
+    for data_client in self.data_clients_r + self.data_clients_t:
+      set_socket_profile(data_client.socket, self.ser_profile)
+
   def accept(self, data_type):
     """ returns if a data channel may attach to this channel """
     if data_type != CLIENT_CTRL and data_type == CLIENT_DATA_RXTX:
@@ -839,6 +993,38 @@ class ThreadedTCPServer(socketserver.ThreadingMixIn, socketserver.TCPServer):
   """ class: server """
   allow_reuse_address = True
 
+if hasattr(socketserver, "UnixStreamServer"):
+  class ThreadedUnixServer(socketserver.ThreadingMixIn, socketserver.UnixStreamServer):
+    """ class: local unix domain socket server """
+    pass
+
+def start_unix_server(path):
+  """ starts a unix domain socket server alongside the tcp server """
+  global unix_server
+  if not hasattr(socketserver, "UnixStreamServer"):
+    out("WARNING: unix domain sockets not supported on this platform")
+    return
+  try:
+    os.unlink(path)
+  except OSError:
+    pass
+  dbg("starting unix server @ {:s}".format(path))
+  unix_server = ThreadedUnixServer(path, ThreadedTCPRequestHandler)
+  unix_server.daemon_threads = True
+  unix_thread = threading.Thread(target=unix_server.serve_forever)
+  unix_thread.daemon = True
+  unix_thread.start()
+
+def stop_unix_server(path):
+  """ stops unix domain socket server and removes socket file """
+  if unix_server:
+    unix_server.shutdown()
+    unix_server.server_close()
+    try:
+      os.unlink(path)
+    except OSError:
+      pass
+
 #
 # Broadcast listener
 #
@@ -906,11 +1092,13 @@ def dump_help(prg):
   out("Usage: " + prg + " [OPTION...] [bind_address] [port]")
   out("       -e <bytes>      Ethernet receive size (defaults to 8 bytes)")
   out("       -p <seconds>    Ethernet client poll interval (defaults to 1 second)")
-  out("       -s <bytes>      Serial receive size (defaults to 1 byte)")
+  out("       -s <bytes>      Serial receive size, max bytes read at once (defaults to 1 byte)")
+  out("       -g <chars>      Serial inter-byte gap ending a read burst for throughput profile (defaults to 4 characters)")
   out("       -b              Starts broadcast service, will answer to network queries")
   out("       -B              Queries network for uartsockets")
   out("       -x <cmd>        Starts a zombie client and executes given command (may be given multiple times)")
   out("       -a <cmd>        Automatically executes given commands on connecting clients, unless zombie (may be given multiple times)")
+  out("       -u <path>       Also listen to given unix domain socket path")
 
 def get_ip():
   s = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
@@ -944,6 +1132,9 @@ if __name__ == "__main__":
       elif arg == "-s":
         g_ser_recv_size = int(sys.argv[ix+1])
         skip = True
+      elif arg == "-g":
+        g_ser_burst_gap = int(sys.argv[ix+1])
+        skip = True
       elif arg == "-p":
         g_eth_poll = int(sys.argv[ix+1])
         skip = True
@@ -957,6 +1148,9 @@ if __name__ == "__main__":
       elif arg == "-a":
         g_auto_cmds.append(sys.argv[ix+1])
         skip = True
+      elif arg == "-u":
+        g_unix_path = sys.argv[ix+1]
+        skip = True
     elif host_port_arg == None:
       host_port_arg = arg
     elif port_arg == None:
@@ -1014,6 +1208,8 @@ if __name__ == "__main__":
       server_thread = threading.Thread(target=server.serve_forever)
       server_thread.daemon = True
       server_thread.start()
+      if g_unix_path:
+        start_unix_server(g_unix_path)
       if len(g_zombie_cmds) > 0:
         zombie = Client(None)
         g_ctrl_clients.append(zombie)
@@ -1022,4 +1218,6 @@ if __name__ == "__main__":
       server_thread.join()
     g_running = False
     server.shutdown()
+    if g_unix_path:
+      stop_unix_server(g_unix_path)
     dbg("stopped server @ {:s}:{:d}".format(HOST, PORT))
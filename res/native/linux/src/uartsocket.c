@@ -2,7 +2,7 @@
  ============================================================================
  Name        : uartsocket.c
  Author      : Peter Andersson
- Version     : 1.5
+ Version     : 1.9
 
  Copyright (c) 2012-2014, Peter Andersson pelleplutt1976@gmail.com
 
@@ -28,9 +28,7 @@
 // Includes
 //
 
-#define VERSION "1.5"
-
-#define USE_TCP_NODELAY 0
+#define VERSION "1.9"
 
 #define _GNU_SOURCE
 
@@ -44,15 +42,15 @@
 #include <sys/stat.h>
 #include <sys/socket.h>
 #include <netinet/in.h>
+#include <netinet/tcp.h>
+#include <sys/un.h>
+#include <sys/epoll.h>
 
 #include <fcntl.h>
 
 #include <termios.h>
 #include <sys/ioctl.h>
-
-#if USE_TCP_NODELAY
-#include <linux/tcp.h>
-#endif
+#include <linux/serial.h>
 
 #include <errno.h>
 
@@ -72,15 +70,52 @@
  * Client type, bash terminal
  */
 #define TYPE_BASH   2
+/**
+ * Client type, device slot. Has no socket nor thread of its own but is
+ * commanded via its owning control channel, so that one control connection
+ * can manage many devices.
+ */
+#define TYPE_SLOT   3
 /**
  * Maximum command line length
  */
 #define CMD_BUF_LEN   256
+/**
+ * Maximum arguments of a command line, argument index buffers hold
+ * CMD_BUF_LEN / 2 entries
+ */
+#define CMD_ARGS_MAX  (CMD_BUF_LEN / 2 - 1)
 
 /**
  * Maximum amount of bytes handled when piping uart and socket
  */
 #define PIPE_BUF_SIZE   1024
+/**
+ * Largest amount of bytes moved at once in event loop mode, where buffers
+ * grow towards this while reads fill them
+ */
+#define FLOW_BUF_MAX    (64*1024)
+/**
+ * Maximum events handled per epoll_wait
+ */
+#define LOOP_MAX_EVENTS 64
+
+/**
+ * Profile, leave socket and serial driver settings as they are
+ */
+#define PROFILE_DEFAULT     0
+/**
+ * Profile, favour short round trips
+ */
+#define PROFILE_LATENCY     1
+/**
+ * Profile, favour bulk transfers
+ */
+#define PROFILE_THROUGHPUT  2
+/**
+ * Socket buffer size for throughput profile
+ */
+#define PROFILE_THROUGHPUT_BUF_SIZE (256*1024)
 
 /**
  * Defines how many r/w calls returning zero bytes are allowed, in cases where
@@ -110,6 +145,39 @@
 #endif
 #define INFO(x, ...) do {fprintf(stdout, x"\n", ## __VA_ARGS__); fflush(stdout);}while(0);
 
+/**
+ * Data on its way in one direction, event loop mode. Held in a pipe when
+ * descriptors can splice, else in a buffer.
+ */
+typedef struct {
+  /** pipe holding pending bytes, -1 if buffered */
+  int pipefd[2];
+  /** buffer holding pending bytes if not spliced */
+  char *buf;
+  int cap;
+  int off;
+  /** pending bytes */
+  int len;
+  /** adaptive chunk size */
+  int size;
+} Flow_t;
+
+struct ClientElem_s;
+
+/**
+ * Registration of a descriptor in the event loop.
+ */
+typedef struct {
+  /** client owning descriptor, NULL for server sockets */
+  struct ClientElem_s *pClient;
+  /** registered descriptor, -1 if not registered */
+  int fd;
+  /** if descriptor is the tty of client, else its socket */
+  int isTty;
+  /** current events of interest */
+  uint32_t events;
+} LoopRef_t;
+
 /**
  * Client struct, defines a client being either a control channel
  * or a data channel.
@@ -117,6 +185,8 @@
 struct ClientElem_s {
   /** flag indicating if client is running or should die */
   volatile int running;
+  /** client id, unique during server lifetime */
+  int id;
   /** type of client, either data or control */
   int type;
   /** the thread hosting this client */
@@ -131,6 +201,8 @@ struct ClientElem_s {
   struct termios termSettings;
   /** uart status */
   int curStatus;
+  /** latency/throughput profile */
+  int profile;
 
   char resbuf[CMD_BUF_LEN * 2];
   char cmdbuf[CMD_BUF_LEN];
@@ -144,6 +216,38 @@ struct ClientElem_s {
 
   int keepOpen;
 
+  /** owning control channel if this is a slot */
+  struct ClientElem_s *pOwner;
+  /** number of slots owned by this control channel */
+  int slots;
+
+  /** event loop mode: command line being received */
+  int lineLen;
+  int lineArgs;
+  int lineArgIx[CMD_BUF_LEN / 2];
+  int lineRejected;
+  /** event loop mode: data towards tty, and towards socket */
+  Flow_t up;
+  Flow_t down;
+  /** event loop mode: read size when tty data goes to many sockets */
+  int ttyReadSize;
+  /** event loop mode: consecutive zero byte tty reads */
+  int zeroes;
+  /** event loop mode: peer hung up with data pending to tty */
+  int sockHup;
+  /** event loop mode: control channel or slot whose tty this data channel
+      consumes, and next data channel consuming it */
+  struct ClientElem_s *pTtyOwner;
+  struct ClientElem_s *pNextConsumer;
+  /** event loop mode: data channels consuming the tty */
+  struct ClientElem_s *pConsumers;
+  /** event loop mode: interest needs an update, see loopUpdateEvents */
+  int dirty;
+  struct ClientElem_s *pPrevDirty;
+  struct ClientElem_s *pNextDirty;
+  LoopRef_t sockRef;
+  LoopRef_t ttyRef;
+
   /** next element */
   struct ClientElem_s *pNext;
 };
@@ -158,6 +262,18 @@ static ClientElem_t *pClientListHead = NULL;
 /** Last client in client list */
 static ClientElem_t *pClientListLast = NULL;
 
+/** Id given to next client */
+static int g_nextId = 0;
+/** Guards list modifications and lookups */
+static pthread_mutex_t g_listMutex = PTHREAD_MUTEX_INITIALIZER;
+
+/** Event loop descriptor, -1 unless serving by event loop */
+static int g_epollfd = -1;
+/** First client whose interest needs an update in event loop mode */
+static ClientElem_t *g_pDirtyHead = NULL;
+/** Set when clients already passed by the sweep are marked as dead */
+static int g_sweepAgain = 0;
+
 /** Counter of live clients */
 static volatile int g_liveClients = 0;
 
@@ -180,17 +296,21 @@ static ClientElem_t *newElement() {
     memset(pClient, 0, sizeof(ClientElem_t));
     pClient->pNext = NULL;
     pClient->ttyfd = -1;
+    pClient->ttyReadSize = PIPE_BUF_SIZE;
+    pClient->sockRef.fd = -1;
+    pClient->ttyRef.fd = -1;
 
+    pthread_mutex_lock(&g_listMutex);
+    pClient->id = g_nextId++;
     if (pClientListHead == NULL) {
       pClientListHead = pClient;
     } else {
       pClientListLast->pNext = pClient;
     }
     pClientListLast = pClient;
-  } else {
-    return NULL;
+    pthread_mutex_unlock(&g_listMutex);
   }
-  return pClientListLast;
+  return pClient;
 }
 
 /**
@@ -217,8 +337,10 @@ static void removeElement(ClientElem_t *pPrevClient, ClientElem_t *pCurClient) {
  * @param pClient address to the client element to remove.
  */
 static void removeElementByAddress(ClientElem_t *pClient) {
-  ClientElem_t *pCurClient = pClientListHead;
+  ClientElem_t *pCurClient;
   ClientElem_t *pPrevClient = NULL;
+  pthread_mutex_lock(&g_listMutex);
+  pCurClient = pClientListHead;
   while (pCurClient != NULL) {
     if (pCurClient == pClient) {
       removeElement(pPrevClient, pCurClient);
@@ -227,47 +349,37 @@ static void removeElementByAddress(ClientElem_t *pClient) {
     pPrevClient = pCurClient;
     pCurClient = pCurClient->pNext;
   }
+  pthread_mutex_unlock(&g_listMutex);
 }
 
 /**
- * Returns client element by given index.
- * @param ix the index of the client element to return.
- * @return pointer to the client at given index or NULL if no such client.
+ * Returns client element by given id. Caller must hold the list mutex.
+ * @param id the id of the client element to return.
+ * @return pointer to the client with given id or NULL if no such client.
  */
-static ClientElem_t *getElementByIndex(int ix) {
-  int cIx = 0;
+static ClientElem_t *findElementById(int id) {
   ClientElem_t *pCurClient = pClientListHead;
-  ClientElem_t *pRes = NULL;
   while (pCurClient != NULL) {
-    if (cIx == ix) {
-      pRes = pCurClient;
-      break;
+    if (pCurClient->id == id) {
+      return pCurClient;
     }
-    cIx++;
     pCurClient = pCurClient->pNext;
   }
-  return pRes;
+  return NULL;
 }
 
 /**
- * Returns the index of given client element.
- * @param pClient Pointer to client element whose index should
- *                be retreived.
- * @return the index or -1 if no such element
+ * Returns client element by given id. Ids are stable, unlike list positions
+ * which shift as clients come and go.
+ * @param id the id of the client element to return.
+ * @return pointer to the client with given id or NULL if no such client.
  */
-static int getIndexByElement(ClientElem_t *pClient) {
-  int res = -1;
-  int ix = 0;
-  ClientElem_t *pCurClient = pClientListHead;
-  while (pCurClient != NULL) {
-    if (pCurClient == pClient) {
-      res = ix;
-      break;
-    }
-    ix++;
-    pCurClient = pCurClient->pNext;
-  }
-  return res;
+static ClientElem_t *getElementById(int id) {
+  ClientElem_t *pRes;
+  pthread_mutex_lock(&g_listMutex);
+  pRes = findElementById(id);
+  pthread_mutex_unlock(&g_listMutex);
+  return pRes;
 }
 
 //
@@ -337,6 +449,56 @@ static speed_t getSpeed(const char *pSpeed) {
   return 0;
 }
 
+/**
+ * Sets socket options for given profile. Fails silently for options not
+ * applicable to the socket, e.g. TCP_NODELAY on unix domain sockets.
+ */
+static void setSocketProfile(int sockfd, int profile) {
+  int on;
+  int size = PROFILE_THROUGHPUT_BUF_SIZE;
+  switch (profile) {
+  case PROFILE_LATENCY:
+    on = 1;
+    setsockopt(sockfd, IPPROTO_TCP, TCP_NODELAY, &on, sizeof(on));
+    break;
+  case PROFILE_THROUGHPUT:
+    on = 0;
+    setsockopt(sockfd, IPPROTO_TCP, TCP_NODELAY, &on, sizeof(on));
+    setsockopt(sockfd, SOL_SOCKET, SO_SNDBUF, &size, sizeof(size));
+    setsockopt(sockfd, SOL_SOCKET, SO_RCVBUF, &size, sizeof(size));
+    break;
+  }
+}
+
+/**
+ * Applies the profile of given control client to its tty and to all data
+ * channels piping the tty.
+ */
+static void applyProfile(ClientElem_t *pClient) {
+  struct serial_struct serial;
+  ClientElem_t *pCurClient;
+  if (pClient->profile != PROFILE_DEFAULT && pClient->ttyfd != -1 &&
+      ioctl(pClient->ttyfd, TIOCGSERIAL, &serial) == 0) {
+    if (pClient->profile == PROFILE_LATENCY) {
+      serial.flags |= ASYNC_LOW_LATENCY;
+    } else {
+      serial.flags &= ~ASYNC_LOW_LATENCY;
+    }
+    if (ioctl(pClient->ttyfd, TIOCSSERIAL, &serial) < 0) {
+      DBG_PRINT("could not set serial flags: %s", strerror(errno));
+    }
+  }
+  pthread_mutex_lock(&g_listMutex);
+  pCurClient = pClientListHead;
+  while (pCurClient != NULL) {
+    if (pCurClient->type == TYPE_DATA && pCurClient->ttyfd == pClient->ttyfd) {
+      setSocketProfile(pCurClient->sockfd, pClient->profile);
+    }
+    pCurClient = pCurClient->pNext;
+  }
+  pthread_mutex_unlock(&g_listMutex);
+}
+
 #define SEND(m, ...) \
   do {\
     if (pClient->type == TYPE_BASH) { \
@@ -347,6 +509,15 @@ static speed_t getSpeed(const char *pSpeed) {
     }\
   } while (0);
 
+/**
+ * Replies to a command line rejected for having more than CMD_ARGS_MAX
+ * arguments.
+ */
+static void sendTooManyArgs(ClientElem_t *pClient) {
+  int n;
+  SEND("ERROR too many arguments, max %i", CMD_ARGS_MAX);
+}
+
 int setUART(ClientElem_t *pClient, int *argIx, int argc) {
   int n;
   int i;
@@ -433,6 +604,11 @@ int setUART(ClientElem_t *pClient, int *argIx, int argc) {
       /* set vmin */
     case 'M': {
       pClient->termSettings.c_cc[VMIN] = atoi(&pCmd[argIx[i] + 1]);
+    }
+      break;
+      /* set latency/throughput profile */
+    case 'L': {
+      pClient->profile = atoi(&pCmd[argIx[i] + 1]);
     }
       break;
       /* set RTS */
@@ -479,6 +655,8 @@ int setUART(ClientElem_t *pClient, int *argIx, int argc) {
     SEND("ERROR Could not configure lines");
     return -1;
   }
+
+  applyProfile(pClient);
   return 0;
 }
 
@@ -489,14 +667,15 @@ int setUART(ClientElem_t *pClient, int *argIx, int argc) {
 /**
  * Reads a line of input, terminated by \n, into given buffer. The line
  * is split into parameters. Returns length of line. If max length is reached
- * the function returns directly reading no more input.
+ * the function returns directly reading no more input. A line having more
+ * than CMD_ARGS_MAX arguments is read until its end and rejected.
  * @param fd the descriptor to read from
  * @param pBuf buffer where to put data
  * @param len maximum line length
- * @param pArgIx pointer to argument index buffer
+ * @param pArgIx pointer to argument index buffer, of CMD_ARGS_MAX + 1 entries
  * @param pArgs pointer to argument counter
  * @param error pointer to flag defining if read fails (0 = no fail)
- * @return length of line
+ * @return length of line, or -1 if rejected
  */
 static int readLine(int fd, char *pBuf, int len, int *pArgIx, int *pArgs, int *error) {
   struct timeval time;
@@ -508,6 +687,7 @@ static int readLine(int fd, char *pBuf, int len, int *pArgIx, int *pArgs, int *e
   pArgIx[0] = 0;
   int zeroByteCnt = 0;
   int run = 1;
+  int rejected = 0;
   while (run) {
     FD_ZERO(&set);
     FD_SET(fd, &set);
@@ -527,6 +707,12 @@ static int readLine(int fd, char *pBuf, int len, int *pArgIx, int *pArgs, int *e
           (*pArgs)++;
           break;
         }
+        if (i == ' ' && *pArgs >= CMD_ARGS_MAX) {
+          rejected = 1;
+        }
+        if (rejected) {
+          continue;
+        }
         if (i != '\r') {
           if (i == ' ') {
             pBuf[clen++] = 0;
@@ -551,9 +737,18 @@ static int readLine(int fd, char *pBuf, int len, int *pArgIx, int *pArgs, int *e
     }
   }
 
+  if (rejected) {
+    *pArgs = 0;
+    return -1;
+  }
   return clen;
 }
 
+static void loopAddTty(ClientElem_t *pClient);
+static void loopUnregister(LoopRef_t *pRef);
+static void loopUndirty(ClientElem_t *pClient);
+static void loopDropConsumers(ClientElem_t *pOwner, int closing);
+
 static int openDevice(ClientElem_t *pClient, char *dev) {
   int n;
   strncpy(pClient->deviceString, dev, 64);
@@ -563,6 +758,7 @@ static int openDevice(ClientElem_t *pClient, char *dev) {
     return 1;
   } else {
     pClient->ttyfd = ttyfd;
+    loopAddTty(pClient);
     /* get current UART settings */
     if (tcgetattr(ttyfd, &pClient->termSettings) < 0) {
       SEND("ERROR could get configuration for \"%s\": %s",
@@ -590,6 +786,9 @@ static int openDevice(ClientElem_t *pClient, char *dev) {
   }
 }
 
+static int slotParse(ClientElem_t *pSlot, int *argIx, int argCount,
+    int cmdlen);
+
 /**
  * Parses a line of data given to a control channel.
  * @param pClient the client of the channel
@@ -606,23 +805,40 @@ static int ctrlParse(ClientElem_t *pClient, int *argIx, int argCount,
   switch (pCmd[0]) {
   /* Identify this control channel */
   case 'I': {
-    SEND("%i", getIndexByElement(pClient));
+    SEND("%i", pClient->id);
     res = 0;
     break;
   }
     /* Attach this channel to given control channel and make it a data channel */
   case 'A': {
     int ix = atoi(&pCmd[argIx[1]]);
-    ClientElem_t *pOtherClient = getElementByIndex(ix);
-    if (pOtherClient == NULL) {
+    int otherTtyfd = -1;
+    int otherProfile = 0;
+    ClientElem_t *pOtherClient;
+    ClientElem_t *pOtherOwner = NULL;
+    /* slots are freed by their owners' threads, copy while listed */
+    pthread_mutex_lock(&g_listMutex);
+    pOtherClient = findElementById(ix);
+    if (pOtherClient != NULL) {
+      otherTtyfd = pOtherClient->ttyfd;
+      otherProfile = pOtherClient->profile;
+      pOtherOwner = pOtherClient->type == TYPE_DATA ?
+          pOtherClient->pTtyOwner : pOtherClient;
+    }
+    pthread_mutex_unlock(&g_listMutex);
+    if (pClient->type == TYPE_SLOT) {
+      SEND("ERROR slot cannot be attached");
+    } else if (pOtherClient == NULL) {
       SEND("ERROR no such channel");
     } else if (pClient == pOtherClient) {
       SEND("ERROR cannot attach to self");
-    } else if (pOtherClient->ttyfd == -1) {
+    } else if (otherTtyfd == -1) {
       SEND("ERROR channel not connected to device");
     } else {
-      pClient->ttyfd = pOtherClient->ttyfd;
+      pClient->ttyfd = otherTtyfd;
+      pClient->pTtyOwner = pOtherOwner;
       pClient->type = TYPE_DATA;
+      setSocketProfile(pClient->sockfd, otherProfile);
       res = 0;
     }
     break;
@@ -644,6 +860,38 @@ static int ctrlParse(ClientElem_t *pClient, int *argIx, int argCount,
     pClient->running = 0;
     res = 0;
     break;
+  }
+    /* Create a device slot owned by this control channel */
+  case 'N': {
+    ClientElem_t *pSlot;
+    if (pClient->type == TYPE_SLOT) {
+      SEND("ERROR slot cannot own slots");
+    } else if ((pSlot = newElement()) == NULL) {
+      SEND("ERROR out of memory");
+    } else {
+      pSlot->sockfd = pClient->sockfd;
+      pSlot->addr = pClient->addr;
+      pSlot->type = TYPE_SLOT;
+      pSlot->pOwner = pClient;
+      pSlot->running = 1;
+      pClient->slots++;
+      SEND("%i", pSlot->id);
+      res = 0;
+    }
+    break;
+  }
+    /* Pass command to given slot */
+  case '@': {
+    ClientElem_t *pSlot = NULL;
+    if (argCount > 2) {
+      pSlot = getElementById(atoi(&pCmd[argIx[1]]));
+    }
+    if (pSlot == NULL || pSlot->type != TYPE_SLOT || pSlot->pOwner != pClient) {
+      SEND("ERROR no such slot");
+    } else {
+      return slotParse(pSlot, argIx, argCount, cmdlen);
+    }
+    break;
   }
     /* Kill server */
   case 'X': {
@@ -653,7 +901,7 @@ static int ctrlParse(ClientElem_t *pClient, int *argIx, int argCount,
     break;
   }
   default: {
-    SEND("ERROR unkown command: %s [I - identify, A x - attach to x, O dev - open serial device, U cfg - configure UART, C - kill client, X - kill server]", pCmd);
+    SEND("ERROR unkown command: %s [I - identify, A x - attach to x, O dev - open serial device, U cfg - configure UART, C - kill client, N - new slot, @x cmd - command slot x, X - kill server]", pCmd);
   }
   }
   if (res == 0) {
@@ -792,15 +1040,6 @@ static void pipeData(ClientElem_t *pClient) {
     sockout = STDOUT_FILENO;
   }
 
-#if USE_TCP_NODELAY
-  int on = 1;
-  if(setsockopt(sockfd, IPPROTO_TCP, TCP_NODELAY, (char*) &on,
-          sizeof(int))<0)
-  {
-    INFO("TCP_NODELAY failed");
-  }
-#endif
-
   int zeroByteCnt = 0;
   while (pClient->running) {
     int maxfd = sockin > ttyfd ? sockin : ttyfd;
@@ -870,7 +1109,9 @@ static void pipeData(ClientElem_t *pClient) {
  * @param ttyfd the descriptor identifying channels to close
  */
 static void closeDataChannels(int ttyfd) {
-  ClientElem_t *pCurClient = pClientListHead;
+  ClientElem_t *pCurClient;
+  pthread_mutex_lock(&g_listMutex);
+  pCurClient = pClientListHead;
   while (pCurClient != NULL) {
     if (pCurClient->type == TYPE_DATA && pCurClient->ttyfd == ttyfd) {
       DBG_PRINT("dataclient 0x%p closing", pCurClient);
@@ -878,6 +1119,109 @@ static void closeDataChannels(int ttyfd) {
     }
     pCurClient = pCurClient->pNext;
   }
+  pthread_mutex_unlock(&g_listMutex);
+}
+
+/**
+ * Closes all data channels attached to the tty of given control channel or
+ * slot. The event loop knows them by its consumers, sparing a list walk.
+ */
+static void closeTtyConsumers(ClientElem_t *pOwner) {
+  if (g_epollfd >= 0) {
+    loopDropConsumers(pOwner, 1);
+  } else {
+    closeDataChannels(pOwner->ttyfd);
+  }
+}
+
+/**
+ * Closes device of given slot and all data channels attached to it. The
+ * slot must not be in the list, or the caller must not hold the list mutex.
+ */
+static void closeSlotDevice(ClientElem_t *pSlot) {
+  DBG_PRINT("slot %i closing", pSlot->id);
+  pSlot->running = 0;
+  pSlot->pOwner->slots--;
+  loopUnregister(&pSlot->ttyRef);
+  loopUndirty(pSlot);
+  if (pSlot->ttyfd != -1) {
+    closeTtyConsumers(pSlot);
+    close(pSlot->ttyfd);
+    pSlot->ttyfd = -1;
+  }
+}
+
+/**
+ * Closes given slot, its device and all data channels attached to it, and
+ * frees the slot.
+ */
+static void closeSlot(ClientElem_t *pSlot) {
+  closeSlotDevice(pSlot);
+  removeElementByAddress(pSlot);
+  free(pSlot);
+}
+
+/**
+ * Closes and frees all slots owned by given control channel. The slots are
+ * unlinked under the list mutex, and closed after it is released, as
+ * closing them walks the list again.
+ */
+static void closeSlots(ClientElem_t *pOwner) {
+  ClientElem_t *pCurClient;
+  ClientElem_t *pPrevClient = NULL;
+  ClientElem_t *pClosed = NULL;
+  if (pOwner->slots == 0) {
+    return;
+  }
+  pthread_mutex_lock(&g_listMutex);
+  pCurClient = pClientListHead;
+  while (pCurClient != NULL) {
+    ClientElem_t *pNextClient = pCurClient->pNext;
+    if (pCurClient->type == TYPE_SLOT && pCurClient->pOwner == pOwner) {
+      removeElement(pPrevClient, pCurClient);
+      pCurClient->pNext = pClosed;
+      pClosed = pCurClient;
+    } else {
+      pPrevClient = pCurClient;
+    }
+    pCurClient = pNextClient;
+  }
+  pthread_mutex_unlock(&g_listMutex);
+  while (pClosed != NULL) {
+    ClientElem_t *pNextClosed = pClosed->pNext;
+    closeSlotDevice(pClosed);
+    free(pClosed);
+    pClosed = pNextClosed;
+  }
+}
+
+/**
+ * Parses a command given to a slot via its owning control channel, on form
+ * "@ <slot id> <command>". The command is moved to the slot's own buffer
+ * and parsed as if given to a control channel of its own.
+ */
+static int slotParse(ClientElem_t *pSlot, int *argIx, int argCount,
+    int cmdlen) {
+  int i;
+  int res;
+  int slotArgIx[CMD_BUF_LEN / 2];
+  int base = argIx[2];
+  if (argCount - 2 > CMD_ARGS_MAX) {
+    sendTooManyArgs(pSlot->pOwner);
+    return -1;
+  }
+  memcpy(pSlot->cmdbuf, &pSlot->pOwner->cmdbuf[base], cmdlen - base);
+  pSlot->cmdbuf[cmdlen - base] = 0;
+  for (i = 2; i < argCount; i++) {
+    slotArgIx[i - 2] = argIx[i] - base;
+  }
+  res = ctrlParse(pSlot, slotArgIx, argCount - 2, cmdlen - base);
+  if (!pSlot->running && g_epollfd < 0) {
+    /* the event loop closes it when sweeping, its tty may have an event
+       pending */
+    closeSlot(pSlot);
+  }
+  return res;
 }
 
 /**
@@ -894,14 +1238,16 @@ static void *ctrlClientFunc(void *pVClient) {
 
   /* Control channel */
   while (pClient->running && pClient->type == TYPE_CONTROL) {
-    int readLineError;
+    int readLineError = 0;
     n = readLine(pClient->sockfd, pClient->cmdbuf, CMD_BUF_LEN, argIx,
         &argCount, &readLineError);
     if (readLineError != 0) {
       pClient->running = 0;
     }
     DBG_PRINT("readline returned %i, argCount:%i, running:%i %s", n, argCount, pClient->running, pClient->cmdbuf);
-    if (n > 0 && pClient->running) {
+    if (n < 0 && pClient->running) {
+      sendTooManyArgs(pClient);
+    } else if (n > 0 && pClient->running) {
       n = ctrlParse(pClient, argIx, argCount, n);
     }
   }
@@ -916,6 +1262,7 @@ static void *ctrlClientFunc(void *pVClient) {
     close(pClient->ttyfd);
     closeDataChannels(pClient->ttyfd);
   }
+  closeSlots(pClient);
 
   /* Cleanup */
   DBG_PRINT("client dead %p: %s", pClient, pClient->type == TYPE_DATA ? "DATA" : "CTRL");
@@ -947,11 +1294,14 @@ static void createControlClient(struct sockaddr_in addr, int sockfd) {
  * Marks all clients as dying.
  */
 static void killAllClients() {
-  ClientElem_t *pCurClient = pClientListHead;
+  ClientElem_t *pCurClient;
+  pthread_mutex_lock(&g_listMutex);
+  pCurClient = pClientListHead;
   while (pCurClient != NULL) {
     pCurClient->running = 0;
     pCurClient = pCurClient->pNext;
   }
+  pthread_mutex_unlock(&g_listMutex);
 }
 
 /**
@@ -960,7 +1310,9 @@ static void killAllClients() {
 static void awaitAllClients() {
   ClientElem_t *pCurClient = pClientListHead;
   while (pCurClient != NULL) {
-    pthread_join(pCurClient->thread, NULL);
+    if (pCurClient->type != TYPE_SLOT) {
+      pthread_join(pCurClient->thread, NULL);
+    }
     pCurClient = pCurClient->pNext;
   }
 }
@@ -992,9 +1344,671 @@ static void setNonBlocking(int sock) {
   }
 }
 
-static int openServer(int port) {
+/**
+ * Opens a unix domain server socket at given path.
+ * @param unixPath the socket path
+ * @return the socket descriptor, or -1 on error
+ */
+static int openUnixServerSocket(const char *unixPath) {
+  int unixSocket;
+  struct sockaddr_un unixAddress;
+
+  if (strlen(unixPath) >= sizeof(unixAddress.sun_path)) {
+    INFO("ERROR unix socket path too long");
+    return -1;
+  }
+  unixSocket = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (unixSocket < 0) {
+    INFO("ERROR opening unix socket");
+    return -1;
+  }
+  memset(&unixAddress, 0, sizeof(unixAddress));
+  unixAddress.sun_family = AF_UNIX;
+  strcpy(unixAddress.sun_path, unixPath);
+  unlink(unixPath);
+  if (bind(unixSocket, (struct sockaddr *) &unixAddress,
+      sizeof(unixAddress)) < 0) {
+    INFO("ERROR binding unix socket %s", unixPath);
+    close(unixSocket);
+    return -1;
+  }
+  listen(unixSocket, 5);
+  return unixSocket;
+}
+
+//
+// Event loop functions
+//
+
+/** Buffer for tty data going to more than one data channel */
+static char g_loopBuf[FLOW_BUF_MAX];
+
+static void flowInit(Flow_t *pFlow) {
+  memset(pFlow, 0, sizeof(Flow_t));
+  pFlow->size = PIPE_BUF_SIZE;
+  if (pipe2(pFlow->pipefd, O_NONBLOCK) == 0) {
+    /* may fail if above pipe-max-size, then default pipe size is used */
+    fcntl(pFlow->pipefd[1], F_SETPIPE_SZ, FLOW_BUF_MAX);
+  } else {
+    pFlow->pipefd[0] = pFlow->pipefd[1] = -1;
+  }
+}
+
+static void flowFree(Flow_t *pFlow) {
+  if (pFlow->pipefd[0] >= 0) {
+    close(pFlow->pipefd[0]);
+    close(pFlow->pipefd[1]);
+    pFlow->pipefd[0] = pFlow->pipefd[1] = -1;
+  }
+  free(pFlow->buf);
+  pFlow->buf = NULL;
+  pFlow->cap = 0;
+}
+
+/**
+ * Makes sure the flow buffer holds at least given number of bytes.
+ */
+static void flowEnsure(Flow_t *pFlow, int need) {
+  if (pFlow->cap < need) {
+    pFlow->buf = realloc(pFlow->buf, need);
+    pFlow->cap = need;
+  }
+}
+
+/**
+ * Leaves splicing for good, moving pending bytes from pipe to buffer.
+ */
+static void flowToBuffered(Flow_t *pFlow) {
+  int n = 0;
+  DBG_PRINT("flow cannot splice, buffering");
+  flowEnsure(pFlow, FLOW_BUF_MAX);
+  while (n < pFlow->len) {
+    int r = read(pFlow->pipefd[0], &pFlow->buf[n], pFlow->len - n);
+    if (r <= 0) break;
+    n += r;
+  }
+  pFlow->len = n;
+  pFlow->off = 0;
+  close(pFlow->pipefd[0]);
+  close(pFlow->pipefd[1]);
+  pFlow->pipefd[0] = pFlow->pipefd[1] = -1;
+}
+
+/**
+ * Grows chunk size while reads fill it, and shrinks it again when traffic
+ * is sparse, so bulk transfers take few syscalls and idle ports little memory.
+ */
+static void flowAdapt(Flow_t *pFlow, int n) {
+  if (n == pFlow->size && pFlow->size < FLOW_BUF_MAX) {
+    pFlow->size *= 2;
+  } else if (n < pFlow->size / 8 && pFlow->size > PIPE_BUF_SIZE) {
+    pFlow->size /= 2;
+  }
+}
+
+/**
+ * Reads a chunk from given descriptor into flow, spliced if possible.
+ * @return number of bytes, 0 on end of file, or -1 with errno set
+ */
+static int flowFill(Flow_t *pFlow, int fd) {
+  int n = -1;
+  if (pFlow->pipefd[0] >= 0) {
+    n = splice(fd, NULL, pFlow->pipefd[1], NULL, pFlow->size,
+        SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+    if (n < 0 && errno == EINVAL) {
+      /* descriptor does not support splice, e.g. tty on older kernels */
+      flowToBuffered(pFlow);
+    }
+  }
+  if (pFlow->pipefd[0] < 0) {
+    flowEnsure(pFlow, pFlow->off + pFlow->len + pFlow->size);
+    n = read(fd, &pFlow->buf[pFlow->off + pFlow->len], pFlow->size);
+  }
+  if (n > 0) {
+    pFlow->len += n;
+    flowAdapt(pFlow, n);
+  }
+  return n;
+}
+
+/**
+ * Adds given bytes to flow. Only called when flow is drained, so bytes
+ * always fit in the pipe.
+ */
+static void flowAppend(Flow_t *pFlow, char *pData, int n) {
+  if (n <= 0) return;
+  if (pFlow->pipefd[0] >= 0) {
+    int w = write(pFlow->pipefd[1], pData, n);
+    if (w > 0) pFlow->len += w;
+    if (w < n) INFO("ERROR flow overrun, %i bytes lost", w < 0 ? n : n - w);
+  } else {
+    flowEnsure(pFlow, pFlow->off + pFlow->len + n);
+    memcpy(&pFlow->buf[pFlow->off + pFlow->len], pData, n);
+    pFlow->len += n;
+  }
+}
+
+/**
+ * Writes as much as possible of pending flow bytes to given descriptor.
+ * @return 0 if ok, also when bytes remain, or -1 on error
+ */
+static int flowDrain(Flow_t *pFlow, int fd) {
+  while (pFlow->len > 0) {
+    int n;
+    if (pFlow->pipefd[0] >= 0) {
+      n = splice(pFlow->pipefd[0], NULL, fd, NULL, pFlow->len,
+          SPLICE_F_MOVE | SPLICE_F_NONBLOCK);
+      if (n < 0 && errno == EINVAL) {
+        flowToBuffered(pFlow);
+        continue;
+      }
+    } else {
+      n = write(fd, &pFlow->buf[pFlow->off], pFlow->len);
+      if (n > 0) pFlow->off += n;
+    }
+    if (n < 0) {
+      return errno == EAGAIN ? 0 : -1;
+    }
+    if (n == 0) {
+      return 0;
+    }
+    pFlow->len -= n;
+  }
+  pFlow->off = 0;
+  return 0;
+}
+
+/**
+ * Sets events of interest for given registration, if changed.
+ */
+static void loopSetEvents(LoopRef_t *pRef, uint32_t events) {
+  struct epoll_event ev;
+  if (pRef->fd < 0 || pRef->events == events) return;
+  ev.events = events;
+  ev.data.ptr = pRef;
+  epoll_ctl(g_epollfd, EPOLL_CTL_MOD, pRef->fd, &ev);
+  pRef->events = events;
+}
+
+static void loopRegister(LoopRef_t *pRef, ClientElem_t *pClient, int fd,
+    int isTty, uint32_t events) {
+  struct epoll_event ev;
+  pRef->pClient = pClient;
+  pRef->fd = fd;
+  pRef->isTty = isTty;
+  pRef->events = events;
+  ev.events = events;
+  ev.data.ptr = pRef;
+  if (epoll_ctl(g_epollfd, EPOLL_CTL_ADD, fd, &ev) < 0) {
+    INFO("ERROR epoll add %i: %s", fd, strerror(errno));
+    pRef->fd = -1;
+  }
+}
+
+static void loopUnregister(LoopRef_t *pRef) {
+  if (pRef->fd >= 0) {
+    epoll_ctl(g_epollfd, EPOLL_CTL_DEL, pRef->fd, NULL);
+    pRef->fd = -1;
+  }
+}
+
+/**
+ * Marks given client for an update of its interest by loopUpdateEvents.
+ * @param pClient the client, or NULL
+ */
+static void loopDirty(ClientElem_t *pClient) {
+  if (pClient == NULL || pClient->dirty) return;
+  pClient->dirty = 1;
+  pClient->pPrevDirty = NULL;
+  pClient->pNextDirty = g_pDirtyHead;
+  if (g_pDirtyHead != NULL) {
+    g_pDirtyHead->pPrevDirty = pClient;
+  }
+  g_pDirtyHead = pClient;
+}
+
+/**
+ * Unmarks given client, as updated or as being freed.
+ */
+static void loopUndirty(ClientElem_t *pClient) {
+  if (!pClient->dirty) return;
+  if (pClient->pPrevDirty != NULL) {
+    pClient->pPrevDirty->pNextDirty = pClient->pNextDirty;
+  } else {
+    g_pDirtyHead = pClient->pNextDirty;
+  }
+  if (pClient->pNextDirty != NULL) {
+    pClient->pNextDirty->pPrevDirty = pClient->pPrevDirty;
+  }
+  pClient->dirty = 0;
+}
+
+/**
+ * Adds a data channel that just attached to the consumers of its tty.
+ */
+static void loopConsume(ClientElem_t *pData) {
+  ClientElem_t *pOwner = pData->pTtyOwner;
+  if (pOwner == NULL) return;
+  pData->pNextConsumer = pOwner->pConsumers;
+  pOwner->pConsumers = pData;
+  loopDirty(pOwner);
+  loopDirty(pData);
+}
+
+/**
+ * Removes a data channel from the consumers of its tty.
+ */
+static void loopUnconsume(ClientElem_t *pData) {
+  ClientElem_t *pOwner = pData->pTtyOwner;
+  ClientElem_t *pCurClient;
+  ClientElem_t *pPrevClient = NULL;
+  if (pOwner == NULL) return;
+  for (pCurClient = pOwner->pConsumers; pCurClient != NULL; pCurClient = pCurClient->pNextConsumer) {
+    if (pCurClient == pData) {
+      if (pPrevClient != NULL) {
+        pPrevClient->pNextConsumer = pData->pNextConsumer;
+      } else {
+        pOwner->pConsumers = pData->pNextConsumer;
+      }
+      break;
+    }
+    pPrevClient = pCurClient;
+  }
+  pData->pTtyOwner = NULL;
+  loopDirty(pOwner);
+}
+
+/**
+ * Detaches all data channels consuming the tty of given control channel or
+ * slot.
+ * @param closing nonzero to close the data channels too
+ */
+static void loopDropConsumers(ClientElem_t *pOwner, int closing) {
+  ClientElem_t *pCurClient = pOwner->pConsumers;
+  while (pCurClient != NULL) {
+    ClientElem_t *pNextClient = pCurClient->pNextConsumer;
+    if (closing && pCurClient->running) {
+      DBG_PRINT("dataclient 0x%p closing", pCurClient);
+      pCurClient->running = 0;
+      g_sweepAgain = 1;
+    }
+    pCurClient->pTtyOwner = NULL;
+    pCurClient->pNextConsumer = NULL;
+    pCurClient = pNextClient;
+  }
+  pOwner->pConsumers = NULL;
+}
+
+/**
+ * Registers the tty just opened by given control channel or slot. Interest
+ * is set when data channels attach.
+ */
+static void loopAddTty(ClientElem_t *pClient) {
+  if (g_epollfd < 0) return;
+  if (pClient->ttyRef.fd >= 0 && pClient->ttyRef.fd != pClient->ttyfd) {
+    /* data channels of the replaced tty are no longer served */
+    loopDropConsumers(pClient, 0);
+    loopUnregister(&pClient->ttyRef);
+  }
+  loopRegister(&pClient->ttyRef, pClient, pClient->ttyfd, 1, 0);
+}
+
+/**
+ * Stops serving a tty that failed, closing its data channels.
+ */
+static void loopTtyLost(ClientElem_t *pOwner) {
+  INFO("ERROR tty %s lost", pOwner->deviceString);
+  loopDropConsumers(pOwner, 1);
+  loopUnregister(&pOwner->ttyRef);
+}
+
+static void loopAccept(int listenfd) {
+  struct sockaddr_in addr;
+  socklen_t len = sizeof(addr);
+  ClientElem_t *pClient;
+  int fd;
+  memset(&addr, 0, sizeof(addr));
+  fd = accept(listenfd, (struct sockaddr *) &addr, &len);
+  if (fd < 0) {
+    INFO("ERROR on accept");
+    g_serverRunning = 0;
+    return;
+  }
+  pClient = newElement();
+  if (pClient == NULL) {
+    close(fd);
+    return;
+  }
+  pClient->sockfd = fd;
+  pClient->addr = addr;
+  pClient->type = TYPE_CONTROL;
+  pClient->running = 1;
+  loopRegister(&pClient->sockRef, pClient, fd, 0, EPOLLIN);
+  g_liveClients++;
+}
+
+/**
+ * Turns a control channel that just attached into a data channel. Bytes
+ * following the attach command are data for the tty.
+ */
+static void loopAttach(ClientElem_t *pClient, char *pRest, int n) {
+  loopConsume(pClient);
+  setNonBlocking(pClient->sockfd);
+  flowInit(&pClient->up);
+  flowInit(&pClient->down);
+  flowAppend(&pClient->up, pRest, n);
+  if (flowDrain(&pClient->up, pClient->ttyfd) < 0) {
+    pClient->running = 0;
+  }
+}
+
+/**
+ * Feeds a character to the command line of given control channel, split in
+ * arguments as by readLine. A line having more than CMD_ARGS_MAX arguments
+ * is fed until its end and rejected.
+ * @return 1 if line is complete, -1 if rejected
+ */
+static int loopFeedLine(ClientElem_t *pClient, char c) {
+  if (c == '\n') {
+    pClient->cmdbuf[pClient->lineLen] = 0;
+    pClient->lineArgs++;
+    return pClient->lineRejected ? -1 : 1;
+  }
+  if (c == ' ' && pClient->lineArgs >= CMD_ARGS_MAX) {
+    pClient->lineRejected = 1;
+  }
+  if (pClient->lineRejected) {
+    return 0;
+  }
+  if (c != '\r') {
+    if (c == ' ') {
+      pClient->cmdbuf[pClient->lineLen++] = 0;
+      pClient->lineArgs++;
+      pClient->lineArgIx[pClient->lineArgs] = pClient->lineLen;
+    } else {
+      pClient->cmdbuf[pClient->lineLen++] = c;
+    }
+  }
+  if (pClient->lineLen == CMD_BUF_LEN - 1) {
+    pClient->cmdbuf[pClient->lineLen] = 0;
+    pClient->lineArgs++;
+    return 1;
+  }
+  return 0;
+}
+
+static void loopCtrlEvent(ClientElem_t *pClient) {
+  char buf[CMD_BUF_LEN];
+  int i;
+  int n = read(pClient->sockfd, buf, sizeof(buf));
+  if (n <= 0) {
+    if (n == 0 || errno != EAGAIN) pClient->running = 0;
+    return;
+  }
+  for (i = 0; i < n && pClient->running && pClient->type == TYPE_CONTROL; i++) {
+    int line = loopFeedLine(pClient, buf[i]);
+    if (line != 0) {
+      int len = pClient->lineLen;
+      int args = pClient->lineArgs;
+      pClient->lineLen = 0;
+      pClient->lineArgs = 0;
+      pClient->lineArgIx[0] = 0;
+      pClient->lineRejected = 0;
+      if (line < 0) {
+        sendTooManyArgs(pClient);
+      } else if (len > 0) {
+        ctrlParse(pClient, pClient->lineArgIx, args, len);
+      }
+    }
+  }
+  if (pClient->running && pClient->type == TYPE_DATA) {
+    loopAttach(pClient, &buf[i], n - i);
+  }
+}
+
+static void loopDataEvent(ClientElem_t *pClient, uint32_t events) {
+  int n;
+  loopDirty(pClient);
+  loopDirty(pClient->pTtyOwner);
+  if (events & EPOLLERR) {
+    pClient->running = 0;
+    return;
+  }
+  if (events & EPOLLOUT) {
+    if (flowDrain(&pClient->down, pClient->sockfd) < 0) {
+      pClient->running = 0;
+    }
+  }
+  if (events & (EPOLLIN | EPOLLHUP)) {
+    if (pClient->up.len > 0) {
+      /* peer hung up while tty still busy, finish when drained */
+      loopUnregister(&pClient->sockRef);
+      pClient->sockHup = 1;
+      return;
+    }
+    n = flowFill(&pClient->up, pClient->sockfd);
+    if (n == 0 || (n < 0 && errno != EAGAIN)) {
+      pClient->running = 0;
+    } else if (n > 0 && flowDrain(&pClient->up, pClient->ttyfd) < 0) {
+      INFO("ERROR ttywrite pipe");
+      pClient->running = 0;
+    }
+  }
+}
+
+static void loopTtyEvent(ClientElem_t *pOwner, uint32_t events) {
+  ClientElem_t *pCurClient;
+  ClientElem_t *pFirst = NULL;
+  int ttyfd = pOwner->ttyfd;
+  int consumers = 0;
+  int n = -1;
+
+  if (ttyfd < 0 || ttyfd != pOwner->ttyRef.fd) return;
+  if (events & EPOLLERR) {
+    loopTtyLost(pOwner);
+    return;
+  }
+  loopDirty(pOwner);
+  for (pCurClient = pOwner->pConsumers; pCurClient != NULL; pCurClient = pCurClient->pNextConsumer) {
+    if (!pCurClient->running) {
+      continue;
+    }
+    loopDirty(pCurClient);
+    if ((events & EPOLLOUT) && pCurClient->up.len > 0) {
+      if (flowDrain(&pCurClient->up, ttyfd) < 0) {
+        INFO("ERROR ttywrite pipe");
+        pCurClient->running = 0;
+        continue;
+      }
+      if (pCurClient->up.len == 0 && pCurClient->sockHup) {
+        pCurClient->running = 0;
+        continue;
+      }
+    }
+    if (pFirst == NULL) pFirst = pCurClient;
+    consumers++;
+  }
+  if (!(events & (EPOLLIN | EPOLLHUP)) || consumers == 0) return;
+
+  if (consumers == 1) {
+    /* sole reader, tty data can be spliced straight to socket */
+    n = flowFill(&pFirst->down, ttyfd);
+    if (n > 0 && flowDrain(&pFirst->down, pFirst->sockfd) < 0) {
+      pFirst->running = 0;
+    }
+  } else {
+    n = read(ttyfd, g_loopBuf, pOwner->ttyReadSize);
+    if (n > 0) {
+      if (n == pOwner->ttyReadSize && pOwner->ttyReadSize < FLOW_BUF_MAX) {
+        pOwner->ttyReadSize *= 2;
+      }
+      for (pCurClient = pOwner->pConsumers; pCurClient != NULL; pCurClient = pCurClient->pNextConsumer) {
+        if (pCurClient->running) {
+          flowAppend(&pCurClient->down, g_loopBuf, n);
+          if (flowDrain(&pCurClient->down, pCurClient->sockfd) < 0) {
+            pCurClient->running = 0;
+          }
+        }
+      }
+    }
+  }
+  if (n > 0) {
+    pOwner->zeroes = 0;
+  } else if (n < 0 && errno != EAGAIN) {
+    loopTtyLost(pOwner);
+  } else if (n == 0 && ++pOwner->zeroes > MAX_ZERO_LOOPS) {
+    /* e.g. an unplugged usb uart */
+    loopTtyLost(pOwner);
+  }
+}
+
+/**
+ * Closes and frees given client, already removed from the list. Only the
+ * event loop frees clients, as it is the only thread touching them.
+ */
+static void loopCloseClient(ClientElem_t *pClient) {
+  DBG_PRINT("client dead %p: %s", pClient, pClient->type == TYPE_DATA ? "DATA" : "CTRL");
+  loopUnregister(&pClient->sockRef);
+  loopUnregister(&pClient->ttyRef);
+  loopUndirty(pClient);
+  close(pClient->sockfd);
+  if (pClient->type == TYPE_DATA) {
+    loopUnconsume(pClient);
+    flowFree(&pClient->up);
+    flowFree(&pClient->down);
+  } else if (pClient->ttyfd != -1) {
+    loopDropConsumers(pClient, 1);
+    close(pClient->ttyfd);
+  }
+  closeSlots(pClient);
+  g_liveClients--;
+  free(pClient);
+}
+
+/**
+ * Closes all clients and slots marked as dead, including data channels
+ * dying with them. Slots follow their owners in the list, so closing an
+ * owner only frees clients not yet passed. Data channels of a closed tty
+ * may have been passed, they are closed by another walk.
+ */
+static void loopSweep() {
+  do {
+    ClientElem_t *pCurClient = pClientListHead;
+    ClientElem_t *pPrevClient = NULL;
+    g_sweepAgain = 0;
+    while (pCurClient != NULL) {
+      if (!pCurClient->running) {
+        pthread_mutex_lock(&g_listMutex);
+        removeElement(pPrevClient, pCurClient);
+        pthread_mutex_unlock(&g_listMutex);
+        if (pCurClient->type == TYPE_SLOT) {
+          closeSlotDevice(pCurClient);
+          free(pCurClient);
+        } else {
+          loopCloseClient(pCurClient);
+        }
+        pCurClient = pPrevClient != NULL ? pPrevClient->pNext : pClientListHead;
+      } else {
+        pPrevClient = pCurClient;
+        pCurClient = pCurClient->pNext;
+      }
+    }
+  } while (g_sweepAgain);
+}
+
+/**
+ * Sets interest of sockets and ttys of clients marked dirty. A socket is
+ * not read while its bytes are still on their way to the tty, and a tty is
+ * not read while any of its data channels has bytes pending, thus slow
+ * peers get backpressure as when piping by blocking threads.
+ */
+static void loopUpdateEvents() {
+  ClientElem_t *pCurClient;
+  ClientElem_t *pData;
+  while (g_pDirtyHead != NULL) {
+    pCurClient = g_pDirtyHead;
+    loopUndirty(pCurClient);
+    if (pCurClient->type == TYPE_DATA && pCurClient->running) {
+      loopSetEvents(&pCurClient->sockRef,
+          (pCurClient->up.len == 0 ? EPOLLIN : 0) |
+          (pCurClient->down.len > 0 ? EPOLLOUT : 0));
+    } else if (pCurClient->type != TYPE_DATA && pCurClient->ttyRef.fd >= 0) {
+      int consumers = 0;
+      int paused = 0;
+      int writing = 0;
+      for (pData = pCurClient->pConsumers; pData != NULL; pData = pData->pNextConsumer) {
+        if (pData->running) {
+          consumers++;
+          if (pData->down.len > 0) paused = 1;
+          if (pData->up.len > 0) writing = 1;
+        }
+      }
+      loopSetEvents(&pCurClient->ttyRef,
+          (consumers > 0 && !paused ? EPOLLIN : 0) | (writing ? EPOLLOUT : 0));
+    }
+  }
+}
+
+/**
+ * Serves all clients from this thread, by epoll. Used instead of a thread
+ * per client when started with -e.
+ */
+static void serveEventLoop(int serverSocket, int unixSocket) {
+  struct epoll_event events[LOOP_MAX_EVENTS];
+  LoopRef_t serverRef;
+  LoopRef_t unixRef;
+  ClientElem_t *pCurClient;
+
+  g_epollfd = epoll_create1(0);
+  if (g_epollfd < 0) {
+    INFO("ERROR epoll_create: %s", strerror(errno));
+    return;
+  }
+  loopRegister(&serverRef, NULL, serverSocket, 0, EPOLLIN);
+  if (unixSocket >= 0) {
+    loopRegister(&unixRef, NULL, unixSocket, 0, EPOLLIN);
+  }
+
+  while (g_serverRunning) {
+    int i;
+    int n = epoll_wait(g_epollfd, events, LOOP_MAX_EVENTS, 1000);
+    if (n < 0 && errno != EINTR) {
+      INFO("ERROR epoll_wait: %s", strerror(errno));
+      break;
+    }
+    for (i = 0; i < n; i++) {
+      LoopRef_t *pRef = (LoopRef_t *) events[i].data.ptr;
+      ClientElem_t *pClient = pRef->pClient;
+      if (pClient == NULL) {
+        loopAccept(pRef->fd);
+      } else if (pRef->isTty) {
+        loopTtyEvent(pClient, events[i].events);
+      } else if (!pClient->running) {
+        continue;
+      } else if (pClient->type == TYPE_DATA) {
+        loopDataEvent(pClient, events[i].events);
+      } else {
+        loopCtrlEvent(pClient);
+      }
+    }
+    loopSweep();
+    loopUpdateEvents();
+  }
+
+  /* Tidy */
+  for (pCurClient = pClientListHead; pCurClient != NULL; pCurClient = pCurClient->pNext) {
+    pCurClient->running = 0;
+  }
+  loopSweep();
+  close(g_epollfd);
+  g_epollfd = -1;
+}
+
+static int openServer(int port, const char *unixPath, int eventLoop) {
   int serverSocket;
+  int unixSocket = -1;
   int clientSocket;
+  int maxfd;
   socklen_t clilen;
   struct sockaddr_in serverAddress;
   struct sockaddr_in clientAddress;
@@ -1022,33 +2036,63 @@ static int openServer(int port) {
   }
   listen(serverSocket, 5);
 
-  clilen = sizeof(clientAddress);
+  /* Setup optional local unix domain socket, falls back to tcp only */
+  if (unixPath != NULL) {
+    unixSocket = openUnixServerSocket(unixPath);
+  }
+  maxfd = serverSocket > unixSocket ? serverSocket : unixSocket;
+
+  if (eventLoop) {
+    serveEventLoop(serverSocket, unixSocket);
+    g_serverRunning = 0;
+  }
+
   /* Start accepting clients */
-  do {
+  while (g_serverRunning) {
     FD_ZERO(&set);
     FD_SET(serverSocket, &set);
+    if (unixSocket >= 0) {
+      FD_SET(unixSocket, &set);
+    }
 
     time.tv_sec = 1;
     time.tv_usec = 0;
 
-    if (select(serverSocket + 1, &set, NULL, NULL, &time) > 0) {
-      clientSocket = accept(serverSocket,
-          (struct sockaddr *) &clientAddress, &clilen);
-      if (clientSocket < 0) {
-        INFO("ERROR on accept");
-        g_serverRunning = 0;
-      } else {
-        //setNonBlocking(clientSocket);
-        createControlClient(clientAddress, clientSocket);
+    if (select(maxfd + 1, &set, NULL, NULL, &time) > 0) {
+      if (FD_ISSET(serverSocket, &set)) {
+        clilen = sizeof(clientAddress);
+        clientSocket = accept(serverSocket,
+            (struct sockaddr *) &clientAddress, &clilen);
+        if (clientSocket < 0) {
+          INFO("ERROR on accept");
+          g_serverRunning = 0;
+        } else {
+          //setNonBlocking(clientSocket);
+          createControlClient(clientAddress, clientSocket);
+        }
+      }
+      if (unixSocket >= 0 && FD_ISSET(unixSocket, &set)) {
+        clientSocket = accept(unixSocket, NULL, NULL);
+        if (clientSocket < 0) {
+          INFO("ERROR on unix accept");
+          g_serverRunning = 0;
+        } else {
+          memset(&clientAddress, 0, sizeof(clientAddress));
+          createControlClient(clientAddress, clientSocket);
+        }
       }
     }
-  } while (g_serverRunning);
+  }
 
   /* Close server socket */
   DBG_PRINT("Server closed");
   close(serverSocket);
+  if (unixSocket >= 0) {
+    close(unixSocket);
+    unlink(unixPath);
+  }
 
-  /* Tidy */
+  /* Tidy, in event loop mode all clients are already closed */
   killAllClients();
   awaitAllClients();
   freeAllClients();
@@ -1128,11 +2172,25 @@ static void openTerminalClient(int argc, char **args, int keepOpen) {
 int main(int argc, char **args) {
   int port;
   int res = EXIT_SUCCESS;
+  int serve = 0;
+  int eventLoop = 0;
+  const char *unixPath = NULL;
 
   port = 5000;
 
-  if (argc == 2) {
+  if (argc == 2 || (argc == 3 && args[1][0] != '-')) {
     port = atoi(args[1]);
+    if (argc == 3) {
+      unixPath = args[2];
+    }
+    serve = 1;
+  } else if ((argc == 3 || argc == 4) && strcmp("-e", args[1]) == 0) {
+    port = atoi(args[2]);
+    if (argc == 4) {
+      unixPath = args[3];
+    }
+    serve = 1;
+    eventLoop = 1;
   } else if (argc >= 3 && strcmp("-o", args[1]) == 0) {
     openTerminalClient(argc, args, 0);
   } else if (argc >= 3 && strcmp("-O", args[1]) == 0) {
@@ -1140,24 +2198,32 @@ int main(int argc, char **args) {
   } else {
     INFO("uartsocket "VERSION);
     INFO("usage: uartsocket -[o|O] <device> (<settings>)");
-    INFO("       uartsocket <port>");
+    INFO("       uartsocket (-e) <port> (<unix socket path>)");
     INFO("       where -o simply opens port, and -O tries to hold port open if device fails");
+    INFO("       where -e serves all clients by one epoll event loop instead of a thread each");
     INFO("       where <settings> can be any combination of:");
     INFO("       B<baudrate> | D<databits> | S<stopbits> | P<parity (n|o|e)>");
+    INFO("       L<profile (0 default, 1 low latency, 2 throughput)>");
     INFO("   ex: uartsocket -o /dev/ttyUSB0 B115200 D8 S1 Pn");
     INFO("         -- opens ttyUSB0 at 115200 bps, 8 databits, 1 stopbit and no parity in terminal");
     INFO("   ex: uartsocket 8000");
     INFO("         -- starts a uartsocket server listening to port 8000");
+    INFO("   ex: uartsocket 8000 /tmp/uartsocket.sock");
+    INFO("         -- as above, but also listening to given unix domain socket");
     INFO("         -- connect as control channel by 'nc localhost 8000'");
     INFO("            enter 'I' to find this channels ID");
     INFO("            enter 'U <port settings>' to configure port");
     INFO("            enter 'O /dev/ttyNNN' to open port");
     INFO("         -- now, connect as data channel by 'nc localhost 8000'");
     INFO("            attach to data stream by entering 'A <ctrl channel id>");
+    INFO("         -- one control channel can manage many devices by slots");
+    INFO("            enter 'N' to create a slot and get its ID");
+    INFO("            enter '@ <slot id> <command>' to open, configure or close");
+    INFO("            the slot's device, then attach data channels to the slot ID");
   }
 
-  if (argc == 2) {
-    res = openServer(port);
+  if (serve) {
+    res = openServer(port, unixPath, eventLoop);
   }
 
   DBG_PRINT("exit...");
@@ -138,6 +138,25 @@ public class FastTermPane extends FastTextPane implements KeyListener {
     }
   }
   
+  // in terminal mode cursor follows text, nothing to queue
+  @Override
+  public void queueText(String s) {
+    if (terminal) {
+      insertLines(s, null);
+    } else {
+      super.queueText(s);
+    }
+  }
+
+  @Override
+  public void queueText(String s, Style style) {
+    if (terminal) {
+      insertLines(s, style);
+    } else {
+      super.queueText(s, style);
+    }
+  }
+
   int indexOfAny(String str, char[] chars) {
     return indexOfAny(str, chars, 0);
   }
@@ -404,77 +423,64 @@ public class FastTermPane extends FastTextPane implements KeyListener {
         lineCount++;
       }
       
-      int offs;
-      int lenDelta = 0;
+      for (int l = lineMin; l <= lineMax; l++) {
+        doc.unindexStyles(doc.lines.get(l));
+      }
       if (relativeLines > 0) {
         int curLine = lineMin;
-        offs = doc.lines.get(curLine).offs;
         // scroll down (visually up), make blanks at bottom
         // 1. replace lines
         while (curLine <= lineMax - relativeLines) {
           Line src = doc.lines.get(curLine + relativeLines);
           Line dst = doc.lines.get(curLine);
-          lenDelta = dst.len - src.len;
-          dst.offs = offs;
           dst.len = src.len;
           dst.string = src.string;
           dst.styles = src.styles;
           dst.nl = src.nl;
-          offs += dst.len;
+          dst.version++;
           curLine++;
         }
         // 2. fill with blanks
         while (curLine <= lineMax) {
           Line blank = doc.lines.get(curLine);
-          lenDelta = 1 - blank.len;
-          blank.offs = offs;
           blank.nl = true;
           blank.len = 1;
           blank.string = "";
           blank.styles = null;
-          offs += blank.len;
+          blank.version++;
           curLine++;
         }
-        // 3. move offset of remaining lines
-        while (curLine <= lineCount) {
-          doc.lines.get(curLine++).offs -= lenDelta;
-        }
       } else {
         // scroll up (visually down), make blanks at top
-        int curLine = lineMin;
-        offs = doc.lines.get(curLine).offs;
         int curLineRev = lineMax;
         relativeLines = -relativeLines;
         // 1. replace lines
         while (curLineRev >= lineMin + relativeLines) {
           Line dst = doc.lines.get(curLineRev);
           Line src = doc.lines.get(curLineRev - relativeLines);
-          lenDelta = dst.len - src.len;
           dst.len = src.len;
           dst.string = src.string;
           dst.styles = src.styles;
           dst.nl = src.nl;
+          dst.version++;
           curLineRev--;
         }
         // 2. fill with blanks
         while (curLineRev >= lineMin) {
           Line blank = doc.lines.get(curLineRev);
-          lenDelta = 1 - blank.len;
           blank.nl = true;
           blank.len = 1;
           blank.string = "";
           blank.styles = null;
+          blank.version++;
           curLineRev--;
         }
-        // 3. fix offset of all lines
-        while (curLine <= lineCount) {
-          Line l = doc.lines.get(curLine++);
-          l.offs = offs;
-          offs += l.len;
-        }
       }
-      // adjust document length and fire change event
-      doc.len += lenDelta;
+      for (int l = lineMin; l <= lineMax; l++) {
+        doc.indexStyles(doc.lines.get(l));
+      }
+      // fix offsets and document length and fire change event
+      doc.updateOffsets(lineMin, lineMax);
       doc.fireOnDocChanged();
     }
   }
@@ -10,18 +10,30 @@ import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Shape;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Transferable;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.AbstractAction;
 import javax.swing.ActionMap;
@@ -31,6 +43,7 @@ import javax.swing.JScrollPane;
 import javax.swing.JViewport;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.TransferHandler;
 
 public class FastTextPane extends JPanel {
@@ -38,6 +51,8 @@ public class FastTextPane extends JPanel {
   public static final int COLOR_SEL_OVERRIDE = 0;
   public static final int COLOR_SEL_MERGE = 1;
   public static final int COLOR_SEL_ADDITIVE = 2;
+  /** Minimum milliseconds between updates caused by document changes */
+  public static final int UPDATE_PERIOD = 1000 / 60;
   
   int selectionMeld = COLOR_SEL_MERGE;
   
@@ -55,7 +70,25 @@ public class FastTextPane extends JPanel {
 
   int longestStringWidth = 0;
   int fontHPx;
+  /** Width of all narrow characters if font is fixed pitch, else 0 */
+  int fixedWPx;
   Style selectionStyle = new Style();
+  /** Bumped when selection colors change, invalidating selected colors of layouts */
+  int selStamp;
+  /** Number of line layouts kept, a few screens worth */
+  static final int LAYOUT_CACHE_SIZE = 1024;
+  final Map<Line, LineLayout> layoutCache = new LinkedHashMap<Line, LineLayout>(LAYOUT_CACHE_SIZE, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Line, LineLayout> eldest) {
+      return size() > LAYOUT_CACHE_SIZE;
+    }
+  };
+  /** Render context layouts were made for, as of last paint */
+  FontRenderContext layoutFrc;
+  /** Lines and offsets being painted, reused between paints */
+  Line[] visLines = new Line[0];
+  int[] visOffs = new int[0];
   Doc doc;
   Font fontNorm;
   Font fontBold;
@@ -63,8 +96,22 @@ public class FastTextPane extends JPanel {
   
   volatile boolean dragArmed;
   volatile boolean dragActive;
+  
+  final AtomicBoolean updatePending = new AtomicBoolean();
+  volatile boolean updateSize;
+  final Timer updateTimer;
 
   public FastTextPane() {
+    updateTimer = new Timer(UPDATE_PERIOD, new ActionListener() {
+      @Override
+      public void actionPerformed(ActionEvent e) {
+        update();
+      }
+    });
+    updateTimer.setRepeats(false);
+    // a restart while update runs must not be coalesced away, as nothing
+    // else would then restart it, the pending flag already throttles
+    updateTimer.setCoalesce(false);
     doc = new Doc();
     doc.listeners.add(this);
     updateFont(getFont());
@@ -93,6 +140,8 @@ public class FastTextPane extends JPanel {
     doc.listeners.remove(this);
     doc = document;
     doc.listeners.add(this);
+    longestStringWidth = 0;
+    doc.measureLines(this);
     onDocChanged();
   }
   
@@ -103,10 +152,7 @@ public class FastTextPane extends JPanel {
   public String getText(boolean forHumans) {
     StringBuilder sb = new StringBuilder();
     synchronized (doc.lines) {
-      for (Line line : doc.lines) {
-        sb.append(line.string);
-        if (line.nl) sb.append(forHumans ? newLine : "\n");
-      }
+      doc.appendText(sb, 0, doc.countLines(), forHumans ? newLine : "\n");
     }
     
     return sb.toString();
@@ -125,7 +171,16 @@ public class FastTextPane extends JPanel {
       }
       return sb.toString();
     } else {
-      return getText(false).substring(selectedStartOffset, Math.min(doc.len, selectedEndOffset));
+      // only gather the selected lines, the document may be huge
+      StringBuilder sb = new StringBuilder();
+      synchronized (doc.lines) {
+        int endOffs = Math.min(doc.len, selectedEndOffset);
+        int l = doc.getLineNumberByOffset(selectedStartOffset);
+        int startOffs = l < countLines() ? doc.getLineOffset(l) : doc.len;
+        int endLine = endOffs >= doc.len ? countLines() : doc.getLineNumberByOffset(endOffs - 1) + 1;
+        doc.appendText(sb, l, endLine, "\n");
+        return sb.substring(selectedStartOffset - startOffs, endOffs - startOffs);
+      }
     }
   }
   
@@ -151,23 +206,59 @@ public class FastTextPane extends JPanel {
   }
   
   void onDocChanged() {
-    recalcSize();
-    repaint();
+    requestUpdate(true);
   }
   
   void onDocRepaint() {
+    requestUpdate(false);
+  }
+  
+  /**
+   * Schedules an update, coalescing all requests within one update period.
+   * May be called from any thread.
+   * @param size whether size needs to be recalculated
+   */
+  void requestUpdate(boolean size) {
+    if (size) updateSize = true;
+    if (updatePending.compareAndSet(false, true)) {
+      updateTimer.restart();
+    }
+  }
+  
+  /**
+   * Recalculates size if needed and repaints. Called on the EDT once per
+   * update period at most. Queued text is committed by the document, not
+   * here, so the EDT never appends.
+   */
+  void update() {
+    updatePending.set(false);
+    if (updateSize) {
+      updateSize = false;
+      recalcSize();
+    }
     repaint();
   }
   
   void onLineAdded(String s) {
-    int w = getFontMetrics(getFont()).stringWidth(s);
+    int w;
+    if (fixedWPx > 0 && isNarrow(s)) {
+      w = s.length() * fixedWPx;
+    } else {
+      w = getFontMetrics(getFont()).stringWidth(s);
+    }
     if (w > longestStringWidth) longestStringWidth = w;
   }
   
+  static boolean isNarrow(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (!Line.isNarrow(s.charAt(i))) return false;
+    }
+    return true;
+  }
+  
   void onCleared() {
     longestStringWidth = 8;
-    recalcSize();
-    //repaint();
+    requestUpdate(true);
   }
   
   public void addText(String s, Style style) {
@@ -182,6 +273,17 @@ public class FastTextPane extends JPanel {
     doc.addText(s, null);
   }
   
+  /**
+   * Queues text to be added in batch, see Doc.queueText.
+   */
+  public void queueText(String s, Style style) {
+    doc.queueText(s, style);
+  }
+  
+  public void queueText(String s) {
+    doc.queueText(s, null);
+  }
+  
   public boolean isSelected() {
   	return 
   			(!rectangularSelection && selectedStartOffset >= 0 && selectedEndOffset > selectedStartOffset) ||
@@ -276,12 +378,40 @@ public class FastTextPane extends JPanel {
   }
   
   void updateFont(Font font) {
+    // called by super constructor before fields are set
+    if (layoutCache != null) layoutCache.clear();
     fontNorm = font;
     fontHPx = getFontMetrics(getFont()).getHeight();
     fontBold = font.deriveFont(Font.BOLD);
     int testWidthNorm = getFontMetrics(fontNorm).stringWidth("PETER RULES!!");
     int testWidthBold = getFontMetrics(fontBold).stringWidth("PETER RULES!!");
     uglyBold = testWidthBold != testWidthNorm;
+    fixedWPx = getFixedPitchWidth(fontNorm);
+  }
+  
+  /**
+   * Returns width of characters in given font if all narrow characters,
+   * i.e. printable latin-1, have same width and strings are not laid out
+   * with kerning or ligatures. Otherwise 0.
+   */
+  int getFixedPitchWidth(Font font) {
+    if (font.hasLayoutAttributes()) return 0;
+    FontMetrics fm = getFontMetrics(font);
+    int w = fm.charWidth(' ');
+    for (char c = 0x20; c <= 0xff; c++) {
+      if (Line.isNarrow(c) && fm.charWidth(c) != w) {
+        return 0;
+      }
+    }
+    return w;
+  }
+  
+  /**
+   * Returns true if offsets and pixels of given line can be mapped
+   * arithmetically.
+   */
+  boolean isFixedPitch(Line line) {
+    return fixedWPx > 0 && line.isNarrow();
   }
   
   
@@ -289,13 +419,8 @@ public class FastTextPane extends JPanel {
     super.setFont(font);
     updateFont(font);
     if (doc != null && doc.lines != null) {
-      synchronized (doc.lines) {
-        longestStringWidth = 0;
-        for (Line line : doc.lines) {
-          int w = getFontMetrics(getFont()).stringWidth(line.string);
-          if (w > longestStringWidth) longestStringWidth = w;
-        }
-      }
+      longestStringWidth = 0;
+      doc.measureLines(this);
       repaint();
     }
   }
@@ -312,16 +437,19 @@ public class FastTextPane extends JPanel {
   
   public void setSelectionForeground(Color sfg) {
     selectionStyle.fg = sfg;
+    selStamp++;
     repaint();
   }
   
   public void setSelectionBackground(Color sbg) {
     selectionStyle.bg = sbg;
+    selStamp++;
     repaint();
   }
   
   public void setSelectionStyle(int style) {
     selectionMeld = style;
+    selStamp++;
     repaint();
   }
   
@@ -402,16 +530,21 @@ public class FastTextPane extends JPanel {
   
   public int getLineOffset(int lineNbr) {
     if (lineNbr < 0 || lineNbr >= countLines()) return 0;
-    Line line = doc.lines.get(lineNbr);
-    return line.offs;
+    return doc.getLineOffset(lineNbr);
   }
   
   public int getLineOffsetAt(int lineNbr, int x) {
     if (lineNbr < 0 || lineNbr >= countLines()) return 0;
+    return getLineOffsetAt(doc.lines.get(lineNbr), x);
+  }
+  
+  int getLineOffsetAt(Line line, int x) {
     x -= 3;
-    Line line = doc.lines.get(lineNbr);
     String str = line.string;
     int len = line.nl ? line.len - 1 : line.len;
+    if (isFixedPitch(line)) {
+      return x <= 0 ? 0 : Math.min(len, (x + fixedWPx - 1) / fixedWPx);
+    }
     FontMetrics fm = getFontMetrics(getFont());
     int offs = 0;
     while (offs < len && fm.stringWidth(str.substring(0, offs)) < x) {
@@ -434,7 +567,11 @@ public class FastTextPane extends JPanel {
     int lineNbr = doc.getLineNumberByOffset(offs);
     if (lineNbr < 0 || lineNbr >= countLines()) return null;
     Line line = doc.lines.get(lineNbr);
-    int strOffs = offs - line.offs;
+    int strOffs = offs - doc.getLineOffset(lineNbr);
+    if (isFixedPitch(line)) {
+      int x = Math.max(0, Math.min(strOffs, line.len-1)) * fixedWPx;
+      return new Point(x, getYForLineNumber(lineNbr));
+    }
     String s = line.string.substring(0, Math.min(strOffs, line.len-1));
     int x = getFontMetrics(getFont()).stringWidth(s);
     return new Point(x, getYForLineNumber(lineNbr));
@@ -446,11 +583,16 @@ public class FastTextPane extends JPanel {
     int lineNbr = y / fontHPx;
     if (lineNbr >= countLines()) return doc.len;
     Line line = doc.lines.get(lineNbr);
+    int lineOffs = doc.getLineOffset(lineNbr);
     int linelen = line.string.length();
 
+    if (isFixedPitch(line)) {
+      int offs = Math.min(linelen, x / fixedWPx);
+      return offs == linelen ? lineOffs + linelen : Math.min(lineOffs + line.len - 1, lineOffs + offs);
+    }
     int fullLineW = getFontMetrics(getFont()).stringWidth(line.string);
     if (x >= fullLineW) {
-      return line.offs + linelen;
+      return lineOffs + linelen;
     }
     
     // binary search
@@ -485,12 +627,12 @@ public class FastTextPane extends JPanel {
       }
     } while (killing < 2);
     
-    return Math.min(line.offs + line.len - 1, line.offs + offs);
+    return Math.min(lineOffs + line.len - 1, lineOffs + offs);
   }
   
   Dimension __d = new Dimension();
   protected void recalcSize() {
-    int h = countLines() * fontHPx;
+    int h = getTotalHeightPx();
     int w = longestStringWidth;
     if (__d == null) __d = new Dimension();
     if (__d.width != w || __d.height != h) {
@@ -528,18 +670,28 @@ public class FastTextPane extends JPanel {
     g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
         RenderingHints.VALUE_ANTIALIAS_ON);
     g.setFont(getFont());
+    FontRenderContext frc = g.getFontRenderContext();
+    if (!frc.equals(layoutFrc)) {
+      layoutCache.clear();
+      layoutFrc = frc;
+    }
     final Rectangle visRect = getVisibleRect();
     int visLine = visRect.y / fontHPx;
     int y = visLine * fontHPx;
     final int visMaxY = visRect.y + visRect.height;
-    final int maxLine = countLines();
+    final int count = (visMaxY - y + fontHPx - 1) / fontHPx;
+    if (visLines.length < count) {
+      visLines = new Line[count];
+      visOffs = new int[count];
+    }
+    // one view of the visible lines, got without waiting for the writer
+    final int n = doc.lines.get(visLine, count, visLines, visOffs);
     g.setColor(getForeground());
-    while (y < visMaxY && visLine < maxLine) {
-      Line l = doc.lines.get(visLine);
-      paintLineShards(g, y, l, visLine);
-      visLine++;
+    for (int i = 0; i < n; i++) {
+      paintLineShards(g, y, visLines[i], visLine + i, visOffs[i]);
       y += fontHPx;
     }
+    Arrays.fill(visLines, 0, n, null);
   }
   
   private Color colMerge(Color colStyle, Color colSel) {
@@ -570,161 +722,279 @@ public class FastTextPane extends JPanel {
     }
   }
   
-  Style shardStyle = new Style();
-  boolean shardSelected = false;
+  private Color colSelected(Color colStyle, Color colSel) {
+    switch (selectionMeld) {
+    case COLOR_SEL_MERGE:
+      return colMerge(colStyle, colSel);
+    case COLOR_SEL_ADDITIVE:
+      return colAdditive(colStyle, colSel);
+    default:
+      return colSel == null ? colStyle : colSel;
+    }
+  }
+  
+  /**
+   * Returns layout of given line, from cache if still valid.
+   */
+  LineLayout getLayout(Line line) {
+    LineLayout lay = layoutCache.get(line);
+    if (lay == null || lay.version != line.version) {
+      lay = new LineLayout(line);
+      layoutCache.put(line, lay);
+    }
+    if (lay.selStamp != selStamp) {
+      lay.selFg = null;
+      lay.selBg = null;
+      lay.selStamp = selStamp;
+    }
+    return lay;
+  }
   
-  protected void paintLineShards(Graphics2D g, int y, Line line, int lineNbr) {
+  protected void paintLineShards(Graphics2D g, int y, Line line, int lineNbr, int lineOffs) {
+    LineLayout lay = getLayout(line);
+    int selStart = 0;
+    int selEnd = 0;
     if (!rectangularSelection && selectedStartOffset >= 0) {
-      selectionStyle.lineStartOffs = selectedStartOffset - line.offs;
-      selectionStyle.lineEndOffs = selectedEndOffset - line.offs;
-    } else if (rectangularSelection && selectedStartRow >= 0) {
-      selectionStyle.lineStartOffs = getLineOffsetAt(lineNbr, selectedStartX);
-      selectionStyle.lineEndOffs = getLineOffsetAt(lineNbr, selectedEndX);
-    }
-    int curOffs = 0;
-    int x = 0;
-    while (curOffs < line.len) {
-      shardStyle.fg = null;
-      shardStyle.bg = null;
-      shardStyle.bold = false;
-      shardSelected = false;
-      int nextOffs = findShardStyle(line, curOffs, lineNbr);
-      int strNextOffs = Math.min(line.nl ? line.len - 1 : line.len, nextOffs);
-      String shardStr = line.string.substring(curOffs, strNextOffs);
-      final int shardTextW = getFontMetrics(getFont()).stringWidth(shardStr);
-      Color fg = null;
-      Color bg = null;
-      boolean bold = false;
-
-      if (!shardSelected) {
-        // no selection
-        fg = shardStyle.fg;
-        bg = shardStyle.bg;
-        bold = shardStyle.bold;
+      selStart = selectedStartOffset - lineOffs;
+      selEnd = selectedEndOffset - lineOffs;
+    } else if (rectangularSelection && selectedStartRow >= 0 &&
+        lineNbr >= selectedStartRow && lineNbr <= selectedEndRow) {
+      selStart = getLineOffsetAt(line, selectedStartX);
+      selEnd = getLineOffsetAt(line, selectedEndX);
+    }
+    selStart = Math.max(0, selStart);
+    selEnd = Math.min(line.len, selEnd);
+    for (int r = 0; r < lay.runs; r++) {
+      int start = lay.runStart[r];
+      int end = lay.runEnd[r];
+      if (selEnd <= start || selStart >= end) {
+        paintShard(g, y, line, lay, r, start, end, false);
       } else {
-        // selected
-        switch (selectionMeld) {
-        case COLOR_SEL_MERGE:
-          fg = colMerge(shardStyle.fg, selectionStyle.fg);
-          bg = colMerge(shardStyle.bg, selectionStyle.bg);
-          break;
-        case COLOR_SEL_ADDITIVE:
-          fg = colAdditive(shardStyle.fg, selectionStyle.fg);
-          bg = colAdditive(shardStyle.bg, selectionStyle.bg);
-          break;
-        default:
-          fg = selectionStyle.fg == null ? shardStyle.fg : selectionStyle.fg; 
-          bg = selectionStyle.bg == null ? shardStyle.bg : selectionStyle.bg;
-          break;
+        if (start < selStart) {
+          paintShard(g, y, line, lay, r, start, selStart, false);
         }
-        bold = shardStyle.bold || selectionStyle.bold;
-      }
-      
-      if (fg == null) fg = getForeground();
-      if (bg != null) {
-        g.setColor(bg);
-        if (!line.nl || nextOffs < line.len) {
-          g.fillRect(x, y + 2, shardTextW + 1, fontHPx);
-        } else {
-          g.fillRect(x, y + 2, getWidth(), fontHPx);
+        paintShard(g, y, line, lay, r, Math.max(start, selStart), Math.min(end, selEnd), true);
+        if (selEnd < end) {
+          paintShard(g, y, line, lay, r, selEnd, end, false);
         }
       }
-      g.setColor(fg);
-      if (bold) {
-        if (uglyBold) {
-          g.drawString(shardStr, x, y + fontHPx - 1);
-          g.drawString(shardStr, x+1, y + fontHPx - 1);
-        } else {
-          g.setFont(fontBold);
-          g.drawString(shardStr, x, y + fontHPx - 1);
-          g.setFont(fontNorm);
+    }
+  }
+  
+  /**
+   * Paints the part from start to end of given style run.
+   */
+  void paintShard(Graphics2D g, int y, Line line, LineLayout lay, int run,
+      int start, int end, boolean selected) {
+    Color fg;
+    Color bg;
+    boolean bold = lay.runBold[run];
+    if (!selected) {
+      fg = lay.runFg[run];
+      bg = lay.runBg[run];
+    } else {
+      if (lay.selFg == null) {
+        lay.selFg = new Color[lay.runs];
+        lay.selBg = new Color[lay.runs];
+        for (int r = 0; r < lay.runs; r++) {
+          lay.selFg[r] = colSelected(lay.runFg[r], selectionStyle.fg);
+          lay.selBg[r] = colSelected(lay.runBg[r], selectionStyle.bg);
         }
+      }
+      fg = lay.selFg[run];
+      bg = lay.selBg[run];
+      bold |= selectionStyle.bold;
+    }
+    int textLen = lay.xs.length - 1;
+    int x = lay.xs[Math.min(start, textLen)];
+    int w = lay.xs[Math.min(end, textLen)] - x;
+    
+    if (fg == null) fg = getForeground();
+    if (bg != null) {
+      g.setColor(bg);
+      if (!line.nl || end < line.len) {
+        g.fillRect(x, y + 2, w + 1, fontHPx);
       } else {
-        g.drawString(shardStr, x, y + fontHPx - 1);
+        g.fillRect(x, y + 2, getWidth(), fontHPx);
       }
-
-      x += shardTextW;
-      curOffs = nextOffs;
+    }
+    if (w <= 0) {
+      return;
+    }
+    g.setColor(fg);
+    GlyphVector gv = lay.getGlyphs(run, bold && !uglyBold);
+    float runX = lay.xs[lay.runStart[run]];
+    float baseY = y + fontHPx - 1;
+    // parts of a run are drawn from the run glyphs, clipped
+    boolean clip = start > lay.runStart[run] || end < lay.runEnd[run];
+    Shape prevClip = null;
+    if (clip) {
+      prevClip = g.getClip();
+      g.clipRect(x, y, w, fontHPx + 2);
+    }
+    g.drawGlyphVector(gv, runX, baseY);
+    if (bold && uglyBold) {
+      g.drawGlyphVector(gv, runX + 1, baseY);
+    }
+    if (clip) {
+      g.setClip(prevClip);
     }
   }
   
   /**
-   * Searches all styles for given line @ given offset, sets shardStyle accordingly
-   * @param line
-   * @param offs
-   * @return next offset
+   * Layout of a line as given by its text and styles, cached between paints
+   * as long as the line version is unchanged. Selection is applied on top
+   * when painting.
    */
-  protected int findShardStyle(Line line, int offs, int lineNbr) {
-    int selNextOffs = Integer.MAX_VALUE;
-    int styleNextOffs = Integer.MAX_VALUE;
-    // check selection
-    if (!rectangularSelection && (selectionStyle.lineEndOffs < offs || selectionStyle.lineStartOffs >= line.len)) {
-      // no selection
-      selNextOffs = line.len;
-    } else if (rectangularSelection &&
-        (lineNbr < selectedStartRow || lineNbr > selectedEndRow ||
-            selectionStyle.lineEndOffs < offs || selectionStyle.lineStartOffs >= line.len)) {
-      // no selection
-      selNextOffs = line.len;
-    } else {
-      // selection
-      if (offs < selectionStyle.lineStartOffs) {
-        // unselected first part of line
-        selNextOffs = selectionStyle.lineStartOffs;
-      } else {
-        if (selectionStyle.lineEndOffs < line.len) {
-          if (offs < selectionStyle.lineEndOffs) {
-            // selected end part of line
-            shardSelected = true;
-            selNextOffs = selectionStyle.lineEndOffs;
-          } else {
-            // unselected end part of line
-            selNextOffs = line.len;
-          }
-        } else {
-          // selecting whole rest of line
-          shardSelected = true;
-          selNextOffs = line.len;
+  class LineLayout {
+    final int version;
+    /** x of each character of the text and of the text end */
+    final int[] xs;
+    final String text;
+    int runs;
+    int[] runStart;
+    int[] runEnd;
+    Color[] runFg;
+    Color[] runBg;
+    boolean[] runBold;
+    GlyphVector[] glyphs;
+    GlyphVector[] glyphsBold;
+    int selStamp;
+    Color[] selFg;
+    Color[] selBg;
+    
+    LineLayout(Line line) {
+      // version first, see Line.version
+      version = line.version;
+      text = line.string;
+      final int len = Math.min(line.len, text.length() + 1);
+      xs = new int[text.length() + 1];
+      if (text.length() > 0) {
+        GlyphVector gv = fontNorm.createGlyphVector(getFontRenderContext(), text);
+        for (int i = 0; i <= text.length(); i++) {
+          xs[i] = (int)Math.round(gv.getGlyphPosition(i).getX());
         }
       }
-    }
-    // check styles
-    if (line.styles != null) {
-      // pass thru all styles, find the one with nearest offset and/or minimum length
-      int minOffs = Integer.MAX_VALUE;
-      int minLen = Integer.MAX_VALUE;
-      int minLenOffs = Integer.MAX_VALUE;
-      
-      for (Style style : line.styles) {
-        if (offs > style.lineEndOffs) {
-          // processed style
-          continue;
+      runStart = new int[4];
+      runEnd = new int[4];
+      runFg = new Color[4];
+      runBg = new Color[4];
+      runBold = new boolean[4];
+      // sweep the styles by start offset, keeping active styles in order of
+      // addition, as the shortest active style wins and later added win ties
+      // copy styles and their ranges, they may change while read
+      List<Style> styleList = line.styles;
+      Style[] styles = styleList == null ? new Style[0] : styleList.toArray(new Style[0]);
+      int nstyles = 0;
+      int[] starts = new int[styles.length];
+      int[] ends = new int[styles.length];
+      for (Style st : styles) {
+        if (st != null) {
+          styles[nstyles] = st;
+          starts[nstyles] = st.lineStartOffs;
+          ends[nstyles] = st.lineEndOffs;
+          nstyles++;
+        }
+      }
+      long[] byStart = new long[nstyles];
+      for (int i = 0; i < nstyles; i++) {
+        byStart[i] = ((long)starts[i] << 32) | i;
+      }
+      Arrays.sort(byStart);
+      int[] active = new int[nstyles];
+      int nactive = 0;
+      int nextStart = 0;
+      int offs = 0;
+      while (offs < len) {
+        int n = 0;
+        for (int a = 0; a < nactive; a++) {
+          if (ends[active[a]] >= offs) {
+            active[n++] = active[a];
+          }
         }
-        if (offs >= style.lineStartOffs) {
-          // active style
-          int styleLen = style.lineEndOffs - style.lineStartOffs; 
+        nactive = n;
+        while (nextStart < nstyles && (int)(byStart[nextStart] >> 32) <= offs) {
+          int ix = (int)byStart[nextStart++];
+          if (ends[ix] < offs) continue;
+          int a = nactive++;
+          while (a > 0 && active[a - 1] > ix) {
+            active[a] = active[a - 1];
+            a--;
+          }
+          active[a] = ix;
+        }
+        int end = len;
+        if (nextStart < nstyles) {
+          end = Math.min(end, (int)(byStart[nextStart] >> 32));
+        }
+        Color fg = null;
+        Color bg = null;
+        boolean bold = false;
+        int minLen = Integer.MAX_VALUE;
+        for (int a = 0; a < nactive; a++) {
+          Style style = styles[active[a]];
+          if (ends[active[a]] < end - 1) end = ends[active[a]] + 1;
+          int styleLen = ends[active[a]] - starts[active[a]];
           if (styleLen <= minLen) {
             minLen = styleLen;
-            minLenOffs = style.lineEndOffs + 1;
-            if (style.fg != null) shardStyle.fg = style.fg; 
-            if (style.bg != null) shardStyle.bg = style.bg;
-            shardStyle.bold |= style.bold;
-          }
-        } else {
-          // upcoming style
-          if (style.lineStartOffs < minOffs) {
-            minOffs = style.lineStartOffs;
+            if (style.fg != null) fg = style.fg;
+            if (style.bg != null) bg = style.bg;
+            bold |= style.bold;
           }
         }
-      } // per style
-      
-      styleNextOffs = Math.min(line.len, Math.min(minLenOffs, minOffs));
+        addRun(offs, end, fg, bg, bold);
+        offs = end;
+      }
+      glyphs = new GlyphVector[runs];
+      glyphsBold = new GlyphVector[runs];
+    }
+    
+    void addRun(int start, int end, Color fg, Color bg, boolean bold) {
+      int r = runs - 1;
+      if (r >= 0 && runBold[r] == bold && 
+          (fg == null ? runFg[r] == null : fg.equals(runFg[r])) &&
+          (bg == null ? runBg[r] == null : bg.equals(runBg[r]))) {
+        runEnd[r] = end;
+        return;
+      }
+      if (runs == runStart.length) {
+        int cap = runs * 2;
+        runStart = Arrays.copyOf(runStart, cap);
+        runEnd = Arrays.copyOf(runEnd, cap);
+        runFg = Arrays.copyOf(runFg, cap);
+        runBg = Arrays.copyOf(runBg, cap);
+        runBold = Arrays.copyOf(runBold, cap);
+      }
+      runStart[runs] = start;
+      runEnd[runs] = end;
+      runFg[runs] = fg;
+      runBg[runs] = bg;
+      runBold[runs] = bold;
+      runs++;
+    }
+    
+    GlyphVector getGlyphs(int run, boolean bold) {
+      GlyphVector[] gvs = bold ? glyphsBold : glyphs;
+      if (gvs[run] == null) {
+        int textLen = text.length();
+        String s = text.substring(Math.min(runStart[run], textLen), Math.min(runEnd[run], textLen));
+        gvs[run] = (bold ? fontBold : fontNorm).createGlyphVector(getFontRenderContext(), s);
+      }
+      return gvs[run];
     }
-    return Math.min(line.len, Math.min(selNextOffs, styleNextOffs));
   }
   
+  FontRenderContext getFontRenderContext() {
+    return layoutFrc != null ? layoutFrc : getFontMetrics(fontNorm).getFontRenderContext();
+  }
+  
+  /**
+   * Returns height of all lines, clamped to what a component can be. Lines
+   * beyond are out of reach, which takes a document of some hundred
+   * million lines.
+   */
   protected int getTotalHeightPx() {
-    return countLines() * fontHPx;
+    return (int)Math.min(Integer.MAX_VALUE, (long)countLines() * fontHPx);
   }
 
   /**
@@ -785,9 +1055,16 @@ public class FastTextPane extends JPanel {
   protected static class Line {
     String string;
     List<Style> styles;
-    int offs;
     int len;
     boolean nl;
+    /**
+     * Bumped on every change of text or styles, invalidating layouts. Painting
+     * reads it before text and styles without the document lock, so it must
+     * be bumped after the change, making a layout of a torn line outdated.
+     */
+    volatile int version;
+    int narrowVersion = -1;
+    boolean narrow;
 
     public Line() {
       string = "";
@@ -804,11 +1081,13 @@ public class FastTextPane extends JPanel {
         if (pStyle.looksSame(s)) {
           if (pStyle.lineEndOffs + 1 == s.lineStartOffs) {
             pStyle.lineEndOffs = s.lineEndOffs;
+            version++;
             return;
           }
         }
       }
       styles.add(s);
+      version++;
     }
     
     public void removeStyle(Style s) {
@@ -816,6 +1095,31 @@ public class FastTextPane extends JPanel {
       if (styles.isEmpty()) {
         styles = null;
       }
+      version++;
+    }
+    
+    /**
+     * Returns true if this line only has narrow characters. Checked once per
+     * version.
+     */
+    boolean isNarrow() {
+      // version before text, as for layouts, so a change in between leaves
+      // the result outdated rather than cached as current
+      int v = version;
+      if (narrowVersion != v) {
+        String str = string;
+        boolean n = true;
+        for (int i = 0; n && i < str.length(); i++) {
+          n = isNarrow(str.charAt(i));
+        }
+        narrow = n;
+        narrowVersion = v;
+      }
+      return narrow;
+    }
+    
+    static boolean isNarrow(char c) {
+      return (c >= 0x20 && c < 0x7f) || (c >= 0xa0 && c <= 0xff);
     }
   }
   
@@ -929,7 +1233,8 @@ public class FastTextPane extends JPanel {
             int lineOffset = getOffsetAt(e.getX(), e.getY());
             if (row < doc.lines.size()) {
               Line line = doc.lines.get(row);
-              int offs = lineOffset - line.offs;
+              int lineOffs = doc.getLineOffset(row);
+              int offs = lineOffset - lineOffs;
               String preStr = line.string.substring(0, offs);
               String postStr = line.string.substring(offs);
               int prec = preStr.lastIndexOf(' ');
@@ -938,11 +1243,11 @@ public class FastTextPane extends JPanel {
                   line.string.charAt(offs) != ' ' && 
                   prec >= 0) {
                 // found word
-                selectedStartOffset = line.offs + prec + 1;
+                selectedStartOffset = lineOffs + prec + 1;
                 if (postc < 0)
-                  selectedEndOffset = line.offs + line.len - 1;
+                  selectedEndOffset = lineOffs + line.len - 1;
                 else
-                  selectedEndOffset = line.offs + preStr.length() + postc;
+                  selectedEndOffset = lineOffs + preStr.length() + postc;
               } else {
                 // no word
                 selectedStartOffset = getOffsetAt(0, e.getY());
@@ -1046,8 +1351,9 @@ public class FastTextPane extends JPanel {
     public void mouseWheelMoved(MouseWheelEvent e) {
       JScrollPane scrlP = getScroll();
       if (scrlP != null) {
-        if (getTotalHeightPx() <= 0) return;
-        int amount = (scrlP.getVerticalScrollBar().getMaximum() * fontHPx) / getTotalHeightPx();
+        long totH = getTotalHeightPx();
+        if (totH <= 0) return;
+        int amount = (int)(((long)scrlP.getVerticalScrollBar().getMaximum() * fontHPx) / totH);
         scrlP.getVerticalScrollBar().setValue(scrlP.getVerticalScrollBar().getValue() + 4 * amount * e.getWheelRotation());
       }
     }
@@ -1087,10 +1393,53 @@ public class FastTextPane extends JPanel {
    * FastTextPane document model
    */
   public static class Doc {
-    List<Line> lines = new ArrayList<Line>();
-    List<FastTextPane> listeners = new ArrayList<FastTextPane>();
+    /** Queued characters making the queueing thread commit by itself */
+    static final int QUEUE_COMMIT_SIZE = 64 * 1024;
+    /** Lines of text copied at a time when walking all lines */
+    static final int TEXT_CHUNK_LINES = 1024;
+    LineStore lines = new LineStore();
+    /** Fired to from appending and indexing threads while panes come and go */
+    List<FastTextPane> listeners = new CopyOnWriteArrayList<FastTextPane>();
     int len = 0;
     int maxBytes = 0;
+    final List<QueuedText> queue = new ArrayList<QueuedText>();
+    int queuedChars;
+    /** Milliseconds the committer thread lingers without queued text */
+    static final int COMMITTER_IDLE = 1000;
+    /** Thread committing queued text, guarded by queue */
+    Thread committer;
+    /**
+     * Lines having styles of each style id. Whoever changes styles of a
+     * stored line directly must unindex it before and index it after.
+     */
+    final Map<Integer, Set<Line>> styleIndex = new HashMap<Integer, Set<Line>>();
+    /**
+     * Lines removed from the head since created, so removedLines plus the
+     * number of a line is a number that stays the line's.
+     */
+    long removedLines;
+    
+    /**
+     * Queued text with same style, style compared by identity.
+     */
+    static class QueuedText {
+      final StringBuilder text = new StringBuilder();
+      final Style style;
+      QueuedText(Style style) {
+        this.style = style;
+      }
+    }
+    
+    /**
+     * Enables or disables compact storage. When enabled, finished lines
+     * without styles are kept as latin-1 bytes instead of Line objects,
+     * trading some cpu for much less memory in large logs.
+     */
+    public void setCompactStorage(boolean compact) {
+      synchronized (lines) {
+        lines.setCompact(compact);
+      }
+    }
     
     public void setMaximumDocumentBytes(int bytes) {
       maxBytes = bytes;
@@ -1117,6 +1466,37 @@ public class FastTextPane extends JPanel {
       }
     }
     
+    /**
+     * Lets given pane measure all lines as if added, e.g. on font change.
+     */
+    void measureLines(FastTextPane ftp) {
+      synchronized (lines) {
+        String[] texts = new String[TEXT_CHUNK_LINES];
+        int n;
+        for (int l = 0; (n = lines.text(l, texts.length, texts)) > 0; l += n) {
+          for (int i = 0; i < n; i++) {
+            ftp.onLineAdded(texts[i]);
+          }
+        }
+      }
+    }
+    
+    /**
+     * Appends text of lines in given range to sb, with given newline.
+     * Compacted lines are not materialized. Caller must hold the lines lock.
+     */
+    void appendText(StringBuilder sb, int from, int to, String newLine) {
+      String[] texts = new String[TEXT_CHUNK_LINES];
+      boolean[] nls = new boolean[TEXT_CHUNK_LINES];
+      int n;
+      for (int l = from; l < to && (n = lines.text(l, Math.min(texts.length, to - l), texts, nls)) > 0; l += n) {
+        for (int i = 0; i < n; i++) {
+          sb.append(texts[i]);
+          if (nls[i]) sb.append(newLine);
+        }
+      }
+    }
+    
     public void fireOnCleared() {
       for (FastTextPane ftp : listeners) {
         ftp.onCleared();
@@ -1126,14 +1506,20 @@ public class FastTextPane extends JPanel {
     public void setText(String s) {
       synchronized (lines) {
         internalClear();
-        addText(s);
+        if (s != null) internalAddText(s, null);
       }
       fireOnDocChanged();
     }
     
     protected void internalClear() {
       synchronized (lines) {
+        synchronized (queue) {
+          queue.clear();
+          queuedChars = 0;
+        }
+        removedLines += lines.size();
         lines.clear();
+        styleIndex.clear();
         len = 0;
       }
     }
@@ -1144,6 +1530,13 @@ public class FastTextPane extends JPanel {
     }
     
     public void addStyleByOffset(Style refStyle, int startOffs, int endOffs) {
+      synchronized (lines) {
+        internalAddStyleByOffset(refStyle, startOffs, endOffs);
+      }
+      fireOnDocRepaint();
+    }
+    
+    void internalAddStyleByOffset(Style refStyle, int startOffs, int endOffs) {
       if (startOffs > len || endOffs < startOffs) return;
       startOffs = Math.max(0, startOffs);
       endOffs = Math.min(len, endOffs);
@@ -1151,22 +1544,29 @@ public class FastTextPane extends JPanel {
       int curLine = getLineNumberByOffset(startOffs);
       while (curOffs < len && curOffs < endOffs) {
         Line line = lines.get(curLine);
-        if (line.offs + line.len > startOffs) {
+        int lineOffs = lines.offset(curLine);
+        if (lineOffs + line.len > startOffs) {
           Style s = new Style(refStyle);
-          s.lineStartOffs = Math.max(0, startOffs - line.offs);
-          s.lineEndOffs = Math.min(line.len, endOffs - line.offs - 1);
-          line.addStyle(s);
+          s.lineStartOffs = Math.max(0, startOffs - lineOffs);
+          s.lineEndOffs = Math.min(line.len, endOffs - lineOffs - 1);
+          addStyle(line, s);
         }
-        curOffs = line.offs + line.len;
+        curOffs = lineOffs + line.len;
         curLine++;
       }
-      fireOnDocRepaint();
     }
     
     public int countLines() {
       return lines.size();
     }
     
+    /**
+     * Returns document offset of given line.
+     */
+    public int getLineOffset(int lineNbr) {
+      return lines.offset(lineNbr);
+    }
+    
     public void addStyleByLine(Style refStyle, int startLine, int endLine) {
       if (startLine >= countLines() || endLine < startLine) return;
       synchronized(lines) {
@@ -1177,7 +1577,7 @@ public class FastTextPane extends JPanel {
           Style s = new Style(refStyle);
           s.lineStartOffs = 0;
           s.lineEndOffs = line.len;
-          line.addStyle(s);
+          addStyle(line, s);
         }
       }
       fireOnDocRepaint();
@@ -1190,20 +1590,85 @@ public class FastTextPane extends JPanel {
         Style s = new Style(refStyle);
         s.lineStartOffs = startOffs;
         s.lineEndOffs = endOffs;
-        line.addStyle(s);
+        addStyle(line, s);
       }
       fireOnDocRepaint();
     }
     
+    /**
+     * Adds given line to the style index under the ids of its styles.
+     */
+    protected void indexStyles(Line line) {
+      if (line.styles == null) return;
+      for (Style s : line.styles) {
+        Set<Line> set = styleIndex.get(s.id);
+        if (set == null) {
+          set = new HashSet<Line>();
+          styleIndex.put(s.id, set);
+        }
+        set.add(line);
+      }
+    }
+    
+    /**
+     * Removes given line from the style index.
+     */
+    protected void unindexStyles(Line line) {
+      if (line.styles == null) return;
+      for (Style s : line.styles) {
+        Set<Line> set = styleIndex.get(s.id);
+        if (set != null) {
+          set.remove(line);
+          if (set.isEmpty()) {
+            styleIndex.remove(s.id);
+          }
+        }
+      }
+    }
+    
+    void addStyle(Line line, Style s) {
+      line.addStyle(s);
+      Set<Line> set = styleIndex.get(s.id);
+      if (set == null) {
+        set = new HashSet<Line>();
+        styleIndex.put(s.id, set);
+      }
+      set.add(line);
+    }
+    
+    /**
+     * Removes styles of given id from given line. Caller must hold the lines
+     * lock.
+     */
+    void removeStyle(Line line, int styleId) {
+      if (line.styles == null) return;
+      unindexStyles(line);
+      for (int i = line.styles.size()-1; i >= 0 ; i--) {
+        if (line.styles.get(i).id == styleId) {
+          line.styles.remove(i);
+          line.version++;
+        }
+      }
+      if (line.styles.isEmpty()) {
+        line.styles = null;
+      }
+      indexStyles(line);
+    }
+    
     public void removeStyle(int styleId) {
       synchronized (lines) {
-        for (Line line : lines) {
-          if (line.styles != null) {
+        Set<Line> set = styleIndex.remove(styleId);
+        if (set != null) {
+          for (Line line : set) {
             for (int i = line.styles.size()-1; i >= 0 ; i--) {
               if (line.styles.get(i).id == styleId) {
                 line.styles.remove(i);
+                line.version++;
               }
             }
+            if (line.styles.isEmpty()) {
+              line.styles = null;
+            }
           }
         }
       }
@@ -1215,7 +1680,9 @@ public class FastTextPane extends JPanel {
       synchronized(lines) {
         Line line = lines.get(lineNbr);
         if (line.styles == null) return;
-        line.styles.clear();;
+        unindexStyles(line);
+        line.styles.clear();
+        line.version++;
       }
     }
     
@@ -1256,20 +1723,127 @@ public class FastTextPane extends JPanel {
             newStyles.add(frag);
           }
         }
+        unindexStyles(line);
         line.styles = newStyles;
+        indexStyles(line);
+        line.version++;
       }
       fireOnDocRepaint();
     }
     
     public void addText(String s, Style style) {
       if (s == null) return;
-      int prevLen;
+      commitQueued();
       synchronized (lines) {
+        internalAddText(s, style);
+      }
+      fireOnDocChanged();
+    }
+    
+    public void addText(String s) {
+      addText(s, null);
+    }
+    
+    /**
+     * Queues text to be added. Unlike addText, this is cheap enough to call
+     * for every few bytes received. Queued text is committed in batches,
+     * by a committer thread of the document at most once per update period
+     * or by the calling thread when much text is queued, each batch firing
+     * one change. Text added by addText after queued text is added after it.
+     */
+    public void queueText(String s, Style style) {
+      if (s == null || s.length() == 0) return;
+      boolean commit;
+      synchronized (queue) {
+        boolean wasEmpty = queue.isEmpty();
+        QueuedText q = wasEmpty ? null : queue.get(queue.size() - 1);
+        if (q == null || q.style != style) {
+          q = new QueuedText(style);
+          queue.add(q);
+        }
+        q.text.append(s);
+        queuedChars += s.length();
+        commit = queuedChars >= QUEUE_COMMIT_SIZE;
+        if (wasEmpty) {
+          // wakes a lingering committer
+          queue.notify();
+        }
+        if (!commit && committer == null) {
+          committer = new Thread(new Runnable() {
+            public void run() {
+              commitLoop();
+            }
+          }, "fasttextpane-commit");
+          committer.setDaemon(true);
+          committer.start();
+        }
+      }
+      if (commit) {
+        commitQueued();
+      }
+    }
+    
+    /**
+     * Commits queued text once per update period while there is any. Ends
+     * when nothing was queued for COMMITTER_IDLE milliseconds.
+     */
+    void commitLoop() {
+      while (true) {
+        try {
+          Thread.sleep(UPDATE_PERIOD);
+        } catch (InterruptedException ignore) {}
+        commitQueued();
+        synchronized (queue) {
+          if (queue.isEmpty()) {
+            try {
+              queue.wait(COMMITTER_IDLE);
+            } catch (InterruptedException ignore) {}
+          }
+          if (queue.isEmpty()) {
+            committer = null;
+            return;
+          }
+        }
+      }
+    }
+    
+    public void queueText(String s) {
+      queueText(s, null);
+    }
+    
+    /**
+     * Adds all queued text to the document.
+     */
+    public void commitQueued() {
+      synchronized (lines) {
+        List<QueuedText> batch;
+        synchronized (queue) {
+          if (queue.isEmpty()) return;
+          batch = new ArrayList<QueuedText>(queue);
+          queue.clear();
+          queuedChars = 0;
+        }
+        for (QueuedText q : batch) {
+          internalAddText(q.text.toString(), q.style);
+        }
+      }
+      fireOnDocChanged();
+    }
+    
+    /**
+     * Adds text and style without firing anything but line additions, one
+     * for each line touched. Caller must hold the lines lock.
+     */
+    void internalAddText(String s, Style style) {
+      // one write lock for all changes, see LineStore.beginWrite
+      lines.beginWrite();
+      try {
         if (maxBytes > 0 && len + s.length() > maxBytes) {
           // tidy
           removeLinesUntilLength(maxBytes);
         }
-        prevLen = len;
+        int prevLen = len;
+        int firstLine = Math.max(0, countLines() - 1);
         int prevOffs = 0;
         int offs = s.indexOf('\n');
         if (offs < 0) {
@@ -1280,24 +1854,23 @@ public class FastTextPane extends JPanel {
             prevOffs = offs + 1;
             offs = s.indexOf('\n', prevOffs);
             if (prevOffs > 0 && s.charAt(prevOffs-1) == '\n') {
-              Line line = new Line();
-              line.offs = len;
-              addLine(line);
+              addLine(new Line());
             }
           }
           if (prevOffs < s.length()) {
             appendLine(s.substring(prevOffs));
           }
         }
+        if (style != null) {
+          internalAddStyleByOffset(style, prevLen, len);
+        }
+        for (int l = firstLine; l < countLines(); l++) {
+          fireOnLineAdded(lines.get(l).string);
+        }
+        lines.compactFinished();
+      } finally {
+        lines.endWrite();
       }
-      if (style != null) {
-        addStyleByOffset(style, prevLen, len);
-      }
-      fireOnDocChanged();
-    }
-    
-    public void addText(String s) {
-      addText(s, null);
     }
     
     static String tabcheck(String s, int offs) {
@@ -1323,12 +1896,13 @@ public class FastTextPane extends JPanel {
           Line preLine = lines.get(lines.size()-1); 
           preLine.len++;
           preLine.nl = true;
+          preLine.version++;
+          lines.lengthChanged(lines.size()-1);
           len++;
         }
-        l.offs = len;
         lines.add(l);
+        indexStyles(l);
         len += l.len;
-        fireOnLineAdded(l.string);
       }
     }
     
@@ -1343,78 +1917,63 @@ public class FastTextPane extends JPanel {
         }
         s = tabcheck(s, l.len);
         l.len += s.length();
+        lines.lengthChanged(countLines() - 1);
         len += s.length();
         l.string += s;
-        fireOnLineAdded(l.string);
+        l.version++;
       }
     }
     
     public void replaceLine(int lineNbr, String s) {
       s = tabcheck(s, 0);
       synchronized (lines) {
-        int lineCount = countLines();
         Line l = lines.get(lineNbr);
         int preLen = l.len + (l.nl ? - 1 : 0);
         int newLen = s.length();
         l.string = s;
+        l.version++;
         l.len = newLen + (l.nl ? 1 : 0);
-        
-        for (int mLineNbr = lineNbr + 1; mLineNbr < lineCount; mLineNbr++) {
-          Line mLine = lines.get(mLineNbr);
-          mLine.offs += (newLen - preLen);
-        }
-        
+        lines.lengthChanged(lineNbr);
         len += (newLen - preLen);
       }
     }
     
     protected void removeLinesUntilLength(int maxLen) {
       synchronized (lines) {
-        int movedOffs = 0;
-        while (!lines.isEmpty() && len > maxLen) {
-          Line line = lines.remove(0);
-          movedOffs += line.len;
-          len -= line.len;
-        }
-        if (movedOffs > 0) {
-          for (Line line : lines) {
-            line.offs -= movedOffs;
+        lines.beginWrite();
+        try {
+          while (!lines.isEmpty() && len > maxLen) {
+            len -= lines.length(0);
+            Line line = lines.dropFirst();
+            if (line != null) {
+              unindexStyles(line);
+            }
+            removedLines++;
           }
+        } finally {
+          lines.endWrite();
         }
       }
     }
+    
+    /**
+     * Updates offsets and document length. Must be called after changing
+     * lengths of lines in given range directly.
+     */
+    protected void updateOffsets(int fromLine, int toLine) {
+      synchronized (lines) {
+        for (int l = fromLine; l <= toLine; l++) {
+          lines.lengthChanged(l);
+        }
+        len = lines.offset(lines.size());
+      }
+    }
 
     public int getLineNumberByOffset(int offs) {
-      // binary search
-      // extend length to power of 2
       final int lineCnt = countLines();
       if (offs >= len) return lineCnt; 
-      int hsb = 31;
-      while (hsb > 0 && (lineCnt & (1 << hsb)) == 0) {
-        hsb--;
-      }
-      int lineCnt2 = (1 << (hsb+1));
-      int curStep = lineCnt2/2;
-      int curLine = lineCnt2/2;
-      Line line;
-      do {
-        int l = Math.max(0, Math.min(lineCnt-1, curLine));
-        line = lines.get(l);
-        
-        if (offs >= line.offs && offs < line.offs + line.len) {
-          break;
-        }
-        
-        if (offs < line.offs) {
-          curLine -= curStep;
-        } else {
-          curLine += curStep;
-        }
-        curStep /= 2;
-        if (curStep == 0) curStep = 1;
-      } while (true);
-      
-      return Math.max(0, Math.min(lineCnt-1, curLine));
+      if (offs <= 0) return 0;
+      return lines.indexOf(offs);
     }
   } // class Doc
 }
\ No newline at end of file
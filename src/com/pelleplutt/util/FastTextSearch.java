@@ -0,0 +1,437 @@
+package com.pelleplutt.util;
+
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.pelleplutt.util.FastTextPane.Doc;
+import com.pelleplutt.util.FastTextPane.Line;
+import com.pelleplutt.util.FastTextPane.Style;
+
+/**
+ * Finds and highlights all matches of a string or regex in the document of a
+ * FastTextPane. Scanning is done by a worker thread a chunk of lines at a
+ * time. Line texts are copied under the document lock without materializing
+ * compacted lines, scanned without it, and the matches of a chunk are styled
+ * in one go followed by one repaint, so the appending thread and painting
+ * are only held up shortly.
+ * <p>
+ * The worker keeps following the document, so text appended after the find
+ * is highlighted too. A line still being appended to is rescanned when it
+ * changes. Lines trimmed from the head of the document drop their matches.
+ * <p>
+ * Matches are kept in a sorted index for stepping through them with next and
+ * previous, which select the match and scroll to it.
+ * @author petera
+ */
+public class FastTextSearch {
+  /** Lines copied and scanned per lock */
+  static final int CHUNK_LINES = 4096;
+  /** Milliseconds between looking for appended text when caught up */
+  static final int POLL_PERIOD = 100;
+  /** Matches highlighted at most */
+  static final int MAX_MATCHES = 1 << 20;
+
+  final FastTextPane pane;
+  final Style style;
+  Doc doc;
+  Worker worker;
+
+  /**
+   * Match index, sorted. Absolute line number, i.e. removedLines of document
+   * plus line number, and start and end offset within line, end exclusive.
+   * Guarded by this, taken after the document lock.
+   */
+  long[] mLines = new long[256];
+  int[] mStarts = new int[256];
+  int[] mEnds = new int[256];
+  int mHead;
+  int mSize;
+
+  /**
+   * Creates a search highlighting matches in given pane with given style id
+   * and colors.
+   */
+  public FastTextSearch(FastTextPane pane, int styleId, Color fg, Color bg) {
+    this.pane = pane;
+    this.style = new Style(styleId, fg, bg, false);
+  }
+
+  /**
+   * Removes highlights of any previous find and starts finding all matches
+   * of given string in the background.
+   * @param s the string or regex to find
+   * @param regex true if s is a regex
+   * @param ignoreCase true to match regardless of case
+   */
+  public void find(String s, boolean regex, boolean ignoreCase) {
+    clear();
+    if (s == null || s.length() == 0) {
+      return;
+    }
+    Pattern p = null;
+    if (regex) {
+      p = Pattern.compile(s, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+    }
+    doc = pane.getDocument();
+    worker = new Worker(doc, s, p, ignoreCase);
+    worker.thread.start();
+  }
+
+  /**
+   * Stops finding, keeping the highlights found so far.
+   */
+  public void stop() {
+    if (worker != null) {
+      worker.running = false;
+      worker.thread.interrupt();
+    }
+  }
+
+  /**
+   * Stops finding and removes all highlights.
+   */
+  public void clear() {
+    stop();
+    if (worker != null) {
+      // wait for a chunk being applied, or its styles would be left
+      try {
+        worker.thread.join();
+      } catch (InterruptedException ignore) {}
+      worker = null;
+    }
+    if (doc != null) {
+      synchronized (doc.lines) {
+        synchronized (this) {
+          mHead = mSize = 0;
+        }
+      }
+      doc.removeStyle(style.id);
+      doc = null;
+    }
+  }
+
+  /**
+   * Returns true while the worker has not yet caught up with the document.
+   */
+  public boolean isSearching() {
+    Worker w = worker;
+    return w != null && w.running && !w.caughtUp;
+  }
+
+  /**
+   * Returns number of matches found so far in the document.
+   */
+  public int getMatchCount() {
+    if (doc == null) {
+      return 0;
+    }
+    synchronized (doc.lines) {
+      synchronized (this) {
+        prune();
+        return mSize;
+      }
+    }
+  }
+
+  /**
+   * Selects and scrolls to the first match after the selection, or after
+   * the start of the document if nothing is selected. Wraps around.
+   * @return false if there are no matches
+   */
+  public boolean next() {
+    return step(true);
+  }
+
+  /**
+   * Selects and scrolls to the last match before the selection, or before
+   * the end of the document if nothing is selected. Wraps around.
+   * @return false if there are no matches
+   */
+  public boolean prev() {
+    return step(false);
+  }
+
+  boolean step(boolean forward) {
+    if (doc == null) {
+      return false;
+    }
+    int start, end;
+    synchronized (doc.lines) {
+      synchronized (this) {
+        prune();
+        if (mSize == 0) {
+          return false;
+        }
+        long curLine;
+        int curCol;
+        int sel = pane.selectedStartOffset;
+        if (!pane.rectangularSelection && sel >= 0 && sel < doc.len) {
+          int l = doc.lines.indexOf(sel);
+          curLine = doc.removedLines + l;
+          curCol = sel - doc.lines.offset(l);
+        } else if (forward) {
+          curLine = Long.MIN_VALUE;
+          curCol = 0;
+        } else {
+          curLine = Long.MAX_VALUE;
+          curCol = 0;
+        }
+        // first match at or after the current position
+        int lo = 0, hi = mSize;
+        while (lo < hi) {
+          int mid = (lo + hi) >>> 1;
+          int ix = mHead + mid;
+          if (mLines[ix] < curLine || mLines[ix] == curLine && mStarts[ix] < curCol) {
+            lo = mid + 1;
+          } else {
+            hi = mid;
+          }
+        }
+        int m;
+        if (forward) {
+          if (lo < mSize && mLines[mHead + lo] == curLine && mStarts[mHead + lo] == curCol) {
+            lo++;
+          }
+          m = lo < mSize ? lo : 0;
+        } else {
+          m = lo > 0 ? lo - 1 : mSize - 1;
+        }
+        int ix = mHead + m;
+        int lineOffs = doc.lines.offset((int)(mLines[ix] - doc.removedLines));
+        start = lineOffs + mStarts[ix];
+        end = lineOffs + mEnds[ix];
+      }
+    }
+    pane.select(start, end);
+    pane.scrollToOffset(start);
+    return true;
+  }
+
+  /**
+   * Drops matches on lines trimmed from the document. Caller must hold the
+   * document lock and this.
+   */
+  void prune() {
+    while (mSize > 0 && mLines[mHead] < doc.removedLines) {
+      mHead++;
+      mSize--;
+    }
+  }
+
+  /**
+   * Appends a match to the index. Caller must hold this.
+   */
+  void addMatch(long line, int start, int end) {
+    if (mHead + mSize == mLines.length) {
+      if (mHead > mSize) {
+        System.arraycopy(mLines, mHead, mLines, 0, mSize);
+        System.arraycopy(mStarts, mHead, mStarts, 0, mSize);
+        System.arraycopy(mEnds, mHead, mEnds, 0, mSize);
+      } else {
+        int cap = mLines.length * 2;
+        long[] nLines = new long[cap];
+        int[] nStarts = new int[cap];
+        int[] nEnds = new int[cap];
+        System.arraycopy(mLines, mHead, nLines, 0, mSize);
+        System.arraycopy(mStarts, mHead, nStarts, 0, mSize);
+        System.arraycopy(mEnds, mHead, nEnds, 0, mSize);
+        mLines = nLines;
+        mStarts = nStarts;
+        mEnds = nEnds;
+      }
+      mHead = 0;
+    }
+    mLines[mHead + mSize] = line;
+    mStarts[mHead + mSize] = start;
+    mEnds[mHead + mSize] = end;
+    mSize++;
+  }
+
+  /**
+   * Removes matches on given line and after from the index. Caller must
+   * hold this.
+   */
+  void dropMatchesFrom(long line) {
+    while (mSize > 0 && mLines[mHead + mSize - 1] >= line) {
+      mSize--;
+    }
+  }
+
+  class Worker implements Runnable {
+    final Doc doc;
+    final String str;
+    final Pattern pattern;
+    final boolean ignoreCase;
+    final Thread thread;
+    volatile boolean running = true;
+    volatile boolean caughtUp;
+    /** Absolute number of next line to scan */
+    long next;
+    /** Absolute number and text of last line scanned if it was the last line */
+    long tail = -1;
+    String tailString;
+    final String[] texts = new String[CHUNK_LINES];
+    int[] found = new int[256];
+
+    Worker(Doc doc, String str, Pattern pattern, boolean ignoreCase) {
+      this.doc = doc;
+      this.str = str;
+      this.pattern = pattern;
+      this.ignoreCase = ignoreCase;
+      thread = new Thread(this, "fasttextsearch");
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        long first = collect();
+        if (first < 0) {
+          caughtUp = true;
+          try {
+            Thread.sleep(POLL_PERIOD);
+          } catch (InterruptedException ignore) {}
+          continue;
+        }
+        caughtUp = false;
+        int n = (int)(next - first);
+        int f = 0;
+        for (int i = 0; i < n; i++) {
+          f = scan(i, texts[i], f);
+        }
+        apply(first, f);
+        Arrays.fill(texts, 0, n, null);
+      }
+    }
+
+    /**
+     * Copies texts of next chunk of lines. A changed tail line has its
+     * highlights removed and is copied again. Texts are copied without
+     * materializing compacted lines, and without the document lock if the
+     * lines cannot change, as those of a MappedDoc.
+     * @return absolute number of first line copied, -1 if nothing to scan
+     */
+    long collect() {
+      LineStore store = doc.lines;
+      int ix, n;
+      long first;
+      synchronized (store) {
+        int count = store.size();
+        if (tail >= 0 && tail >= doc.removedLines && tail - doc.removedLines < count) {
+          int tailIx = (int)(tail - doc.removedLines);
+          if (!store.text(tailIx).equals(tailString)) {
+            doc.removeStyle(store.get(tailIx), style.id);
+            synchronized (FastTextSearch.this) {
+              dropMatchesFrom(tail);
+            }
+            next = tail;
+          }
+        }
+        if (next < doc.removedLines) {
+          next = doc.removedLines;
+        }
+        ix = (int)(next - doc.removedLines);
+        n = Math.min(CHUNK_LINES, count - ix);
+        synchronized (FastTextSearch.this) {
+          if (n <= 0 || mSize >= MAX_MATCHES) {
+            return -1;
+          }
+        }
+        tail = -1;
+        first = next;
+        next += n;
+        if (store.isMutable()) {
+          store.text(ix, n, texts);
+          if (ix + n == count) {
+            tail = next - 1;
+            tailString = texts[n - 1];
+          }
+          return first;
+        }
+      }
+      // lines never change, and reading them may be file I/O
+      store.text(ix, n, texts);
+      return first;
+    }
+
+    /**
+     * Finds matches in given text and adds them to found as triplets of
+     * line index in chunk, start and end.
+     * @return new number of ints in found
+     */
+    int scan(int lineIx, String text, int f) {
+      if (pattern != null) {
+        Matcher m = pattern.matcher(text);
+        while (m.find()) {
+          if (m.end() > m.start()) {
+            f = addFound(f, lineIx, m.start(), m.end());
+          }
+        }
+      } else if (ignoreCase) {
+        int l = str.length();
+        for (int i = 0; i + l <= text.length(); i++) {
+          if (text.regionMatches(true, i, str, 0, l)) {
+            f = addFound(f, lineIx, i, i + l);
+            i += l - 1;
+          }
+        }
+      } else {
+        int l = str.length();
+        int i = text.indexOf(str);
+        while (i >= 0) {
+          f = addFound(f, lineIx, i, i + l);
+          i = text.indexOf(str, i + l);
+        }
+      }
+      return f;
+    }
+
+    int addFound(int f, int lineIx, int start, int end) {
+      if (f + 3 > found.length) {
+        found = Arrays.copyOf(found, found.length * 2);
+      }
+      found[f++] = lineIx;
+      found[f++] = start;
+      found[f++] = end;
+      return f;
+    }
+
+    /**
+     * Styles found matches of chunk starting at given absolute line, skipping
+     * lines trimmed or changed since copied, and repaints once.
+     */
+    void apply(long first, int f) {
+      if (f == 0) {
+        return;
+      }
+      synchronized (doc.lines) {
+        if (!running) {
+          return;
+        }
+        synchronized (FastTextSearch.this) {
+          int count = doc.lines.size();
+          for (int i = 0; i < f && mSize < MAX_MATCHES; i += 3) {
+            long abs = first + found[i];
+            long ix = abs - doc.removedLines;
+            if (ix < 0 || ix >= count) {
+              continue;
+            }
+            Line line = doc.lines.get((int)ix);
+            if (!line.string.equals(texts[found[i]])) {
+              continue;
+            }
+            Style st = new Style(style);
+            st.lineStartOffs = found[i + 1];
+            st.lineEndOffs = found[i + 2] - 1;
+            doc.addStyle(line, st);
+            addMatch(abs, found[i + 1], found[i + 2]);
+          }
+          prune();
+        }
+      }
+      doc.fireOnDocRepaint();
+    }
+  }
+}
@@ -0,0 +1,832 @@
+package com.pelleplutt.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+import com.pelleplutt.util.FastTextPane.Line;
+
+/**
+ * Line storage of FastTextPane.Doc. Lines are kept in a ring, so appending
+ * at the tail and trimming at the head are both O(1), as is indexing.
+ * <p>
+ * Line offsets are not stored but summed from line lengths kept in a
+ * fenwick tree over the ring slots, so changing the length of a line and
+ * finding the offset of a line, or the line of an offset, are O(log n).
+ * Trimming the head only moves the head, slots outside the ring keep their
+ * stale lengths as sums only ever span slots in use.
+ * <p>
+ * Whoever changes the len of a stored line must call lengthChanged.
+ * <p>
+ * In compact mode, finished lines without styles and only having latin-1
+ * characters are not kept as Line objects. Their text is stored as bytes in
+ * large pages and the slot only holds the text position, so a line costs
+ * about one byte per character and a few ints. Getting a compacted line
+ * materializes a new Line which is kept until compacted again when the
+ * document calls compactFinished, or, would MATERIALIZED_LIMIT lines have
+ * been materialized, by a compacting thread taking the document lock. Only
+ * the document lock holder may compact, as it may be holding lines it got.
+ * The text of a materialized line is only written again if the line version
+ * changed. Walking the text of all lines is done by text, which does not
+ * materialize.
+ * <p>
+ * Writers hold the document lock. Painting reads without it, so the ring is
+ * also guarded by a stamped lock. Writers take its write lock while changing
+ * the ring, or hold it through a write section. Readers first try an
+ * optimistic read, which never waits and is validated afterwards. Only a
+ * failed validation or a compacted line to materialize makes a reader take
+ * the lock, and a write section lets go of it for such a reader. So painting
+ * waits for one change of the ring at most, never for an append holding the
+ * document lock, and an append only waits for a few array reads.
+ * @author petera
+ */
+class LineStore extends AbstractList<Line> implements RandomAccess {
+  static final int INITIAL_CAPACITY = 64;
+  static final int PAGE_BITS = 20;
+  static final int PAGE_SIZE = 1 << PAGE_BITS;
+  /** Materialized lines making compactFinished compact all lines */
+  static final int MATERIALIZED_LIMIT = 4096;
+
+  Line[] ring = new Line[INITIAL_CAPACITY];
+  /** Length of each slot as known by the tree */
+  int[] lens = new int[INITIAL_CAPACITY];
+  /** Fenwick tree of slot lengths, 1-based */
+  int[] tree = new int[INITIAL_CAPACITY + 1];
+  int head;
+  int size;
+  /** Guards ring, see class comment. Not reentrant, never call out holding it */
+  final StampedLock lock = new StampedLock();
+  /** Thread in a write section and its depth and stamp */
+  Thread writer;
+  int writerDepth;
+  long writerStamp;
+  /** Readers waiting for the write lock, making a write section let go */
+  final AtomicInteger readersWaiting = new AtomicInteger();
+  
+  boolean compact;
+  /**
+   * Text position in pages of each slot shifted left once, low bit set if
+   * line ends with newline. -1 if text not in pages.
+   */
+  long[] texts = newTexts(INITIAL_CAPACITY);
+  final List<byte[]> pages = new ArrayList<byte[]>();
+  /** Number of slots having text in each page */
+  int[] pageRefs = new int[16];
+  long writePos;
+  int materialized;
+  /** Index of first line not yet compacted by compactFinished */
+  int finished;
+  /** Set while a compacting thread is started and not yet done */
+  final AtomicBoolean compactRequested = new AtomicBoolean();
+
+  /**
+   * Starts a write section. Changes by the calling thread within it share
+   * one write lock instead of taking it each, which would be a good part of
+   * the cost of appending a line. Caller must hold the document lock and end
+   * the section. Sections may nest.
+   */
+  public void beginWrite() {
+    if (writerDepth++ == 0) {
+      writerStamp = lock.writeLock();
+      writer = Thread.currentThread();
+    }
+  }
+
+  public void endWrite() {
+    if (--writerDepth == 0) {
+      writer = null;
+      lock.unlockWrite(writerStamp);
+    }
+  }
+
+  /**
+   * Takes the write lock for a change of the ring, unless in a write section
+   * where it is already held. A write section lets waiting readers have the
+   * lock first.
+   * @return stamp for writeUnlock
+   */
+  long writeLock() {
+    if (writer != Thread.currentThread()) {
+      return lock.writeLock();
+    }
+    if (readersWaiting.get() > 0) {
+      lock.unlockWrite(writerStamp);
+      while (readersWaiting.get() > 0) {
+        Thread.yield();
+      }
+      writerStamp = lock.writeLock();
+    }
+    return 0;
+  }
+
+  void writeUnlock(long stamp) {
+    if (stamp != 0) {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Takes the write lock for a reader whose optimistic read failed. Must be
+   * released by lock.unlockWrite.
+   */
+  long readerLock() {
+    readersWaiting.incrementAndGet();
+    try {
+      return lock.writeLock();
+    } finally {
+      readersWaiting.decrementAndGet();
+    }
+  }
+
+  @Override
+  public Line get(int index) {
+    if (writer == Thread.currentThread()) {
+      // in a write section, let waiting readers in first
+      writeLock();
+      return internalGet(slot(index));
+    }
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      Line[] r = ring;
+      int n = size;
+      Line l = index >= 0 && index < n ? r[(head + index) & (r.length - 1)] : null;
+      if (l != null && lock.validate(stamp)) {
+        return l;
+      }
+    }
+    // out of range, compacted or changed while read
+    stamp = readerLock();
+    try {
+      return internalGet(slot(index));
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Copies count lines from given index, or less at the end, into dst and
+   * their offsets into offs. The lines are one consistent view of the store
+   * even if read without the document lock, as done by painting.
+   * @return number of lines copied
+   */
+  public int get(int from, int count, Line[] dst, int[] offs) {
+    if (writer == Thread.currentThread()) {
+      return internalGet(from, count, dst, offs, true);
+    }
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int n = internalGet(from, count, dst, offs, false);
+        if (n >= 0 && lock.validate(stamp)) {
+          return n;
+        }
+      } catch (RuntimeException e) {
+        // torn read of arrays being replaced, read again locked
+      }
+    }
+    stamp = readerLock();
+    try {
+      return internalGet(from, count, dst, offs, true);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Gets line of given slot, materializing it if compacted. Caller must hold
+   * the write lock.
+   */
+  Line internalGet(int slot) {
+    Line l = ring[slot];
+    if (l == null) {
+      l = materialize(slot);
+    }
+    return l;
+  }
+
+  /**
+   * Does get of lines and offsets. Caller must hold the write lock, or
+   * validate an optimistic read afterwards.
+   * @return number of lines copied, -1 if a line is compacted and not
+   *   to be materialized
+   */
+  int internalGet(int from, int count, Line[] dst, int[] offs, boolean materialize) {
+    if (from < 0) {
+      throw new IndexOutOfBoundsException("index " + from + ", size " + size);
+    }
+    int n = Math.max(0, Math.min(count, size - from));
+    if (n == 0) {
+      return 0;
+    }
+    int o = internalOffset(from);
+    Line[] r = ring;
+    int[] ls = lens;
+    int h = head;
+    for (int i = 0; i < n; i++) {
+      int slot = (h + from + i) & (r.length - 1);
+      Line l = r[slot];
+      if (l == null) {
+        if (!materialize) {
+          return -1;
+        }
+        l = materialize(slot);
+      }
+      dst[i] = l;
+      offs[i] = o;
+      o += ls[slot];
+    }
+    return n;
+  }
+
+  /**
+   * Returns text of given line without materializing it if compacted.
+   * Caller must hold the document lock, see isMutable.
+   */
+  public String text(int index) {
+    String[] dst = new String[1];
+    if (text(index, 1, dst) == 0) {
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size());
+    }
+    return dst[0];
+  }
+
+  /**
+   * Copies texts of count lines from given index, or less at the end, into
+   * dst. Compacted lines are read from the pages, not materialized, so
+   * scanning many lines does not undo compaction. Caller must hold the
+   * document lock, see isMutable.
+   * @return number of texts copied
+   */
+  public int text(int from, int count, String[] dst) {
+    return text(from, count, dst, null);
+  }
+
+  /**
+   * As text, also copying whether each line ends with newline into nls
+   * unless null.
+   */
+  public int text(int from, int count, String[] dst, boolean[] nls) {
+    if (writer == Thread.currentThread()) {
+      return internalText(from, count, dst, nls);
+    }
+    // with the document lock held, only materializing readers change the
+    // ring, which does not change any text
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int n = internalText(from, count, dst, nls);
+        if (lock.validate(stamp)) {
+          return n;
+        }
+      } catch (RuntimeException e) {
+        // torn read of a line being materialized, read again locked
+      }
+    }
+    stamp = readerLock();
+    try {
+      return internalText(from, count, dst, nls);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  int internalText(int from, int count, String[] dst, boolean[] nls) {
+    if (from < 0) {
+      throw new IndexOutOfBoundsException("index " + from + ", size " + size);
+    }
+    int n = Math.max(0, Math.min(count, size - from));
+    for (int i = 0; i < n; i++) {
+      int slot = slot(from + i);
+      Line l = ring[slot];
+      dst[i] = l != null ? l.string : compactedText(slot);
+      if (nls != null) {
+        nls[i] = l != null ? l.nl : (texts[slot] & 1) != 0;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Returns true if text of stored lines may change, or lines move by
+   * trimming the head, so that text must be read holding the document lock.
+   */
+  public boolean isMutable() {
+    return true;
+  }
+
+  @Override
+  public Line set(int index, Line l) {
+    long stamp = writeLock();
+    try {
+      int slot = slot(index);
+      Line prev = internalGet(slot);
+      release(slot);
+      ring[slot] = l;
+      setLength(slot, l.len);
+      return prev;
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean add(Line l) {
+    long stamp = writeLock();
+    try {
+      if (size == ring.length) {
+        grow();
+      }
+      int slot = (head + size) & (ring.length - 1);
+      ring[slot] = l;
+      setLength(slot, l.len);
+      size++;
+      modCount++;
+      return true;
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+
+  /**
+   * Removes the head line.
+   * @return the removed line
+   */
+  public Line removeFirst() {
+    long stamp = writeLock();
+    try {
+      Line l = internalGet(slot(0));
+      release(head);
+      ring[head] = null;
+      head = (head + 1) & (ring.length - 1);
+      size--;
+      finished = Math.max(0, finished - 1);
+      modCount++;
+      return l;
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+
+  /**
+   * Removes the head line without materializing it if compacted, as done
+   * when trimming the head of a capped document.
+   * @return the removed line, or null if it was compacted, thus without
+   *   styles
+   */
+  public Line dropFirst() {
+    long stamp = writeLock();
+    try {
+      int slot = slot(0);
+      Line l = ring[slot];
+      release(slot);
+      ring[slot] = null;
+      head = (head + 1) & (ring.length - 1);
+      size--;
+      finished = Math.max(0, finished - 1);
+      modCount++;
+      return l;
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+
+  /**
+   * Returns length of given line, including newline, without materializing
+   * it if compacted. Caller must hold the document lock.
+   */
+  public int length(int index) {
+    return lens[slot(index)];
+  }
+
+  @Override
+  public Line remove(int index) {
+    if (index == 0) {
+      return removeFirst();
+    }
+    long stamp = writeLock();
+    try {
+      Line l = internalGet(slot(index));
+      release(slot(index));
+      for (int i = index; i < size - 1; i++) {
+        int dst = slot(i);
+        int src = slot(i + 1);
+        ring[dst] = ring[src];
+        texts[dst] = texts[src];
+        setLength(dst, lens[src]);
+      }
+      ring[slot(size - 1)] = null;
+      texts[slot(size - 1)] = -1;
+      size--;
+      finished = Math.min(finished, index);
+      modCount++;
+      return l;
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+
+  @Override
+  public void clear() {
+    long stamp = writeLock();
+    try {
+      ring = new Line[INITIAL_CAPACITY];
+      lens = new int[INITIAL_CAPACITY];
+      tree = new int[INITIAL_CAPACITY + 1];
+      texts = newTexts(INITIAL_CAPACITY);
+      head = size = finished = 0;
+      modCount++;
+      clearPages();
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+
+  /**
+   * Updates the length index after len of given line was changed.
+   */
+  public void lengthChanged(int index) {
+    long stamp = writeLock();
+    try {
+      int slot = slot(index);
+      if (ring[slot] != null) {
+        setLength(slot, ring[slot].len);
+      }
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+  
+  /**
+   * Enables or disables compact mode. Enabling compacts all lines but the
+   * last, disabling materializes all lines.
+   */
+  public void setCompact(boolean compact) {
+    long stamp = writeLock();
+    try {
+      this.compact = compact;
+      if (compact) {
+        compactAll();
+      } else {
+        for (int i = 0; i < size; i++) {
+          internalGet(slot(i));
+        }
+        Arrays.fill(texts, -1);
+        clearPages();
+      }
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+  
+  /**
+   * In compact mode, compacts lines added since last call but the last line,
+   * which may still be appended to. Would many lines have been materialized
+   * since, all lines are compacted.
+   */
+  public void compactFinished() {
+    if (!compact) {
+      return;
+    }
+    long stamp = writeLock();
+    try {
+      if (materialized > MATERIALIZED_LIMIT) {
+        compactAll();
+      } else {
+        for (int i = finished; i < size - 1; i++) {
+          compact(slot(i));
+        }
+        finished = Math.max(finished, size - 1);
+      }
+    } finally {
+      writeUnlock(stamp);
+    }
+  }
+  
+  /**
+   * Compacts all lines but the last. Caller must hold the write lock.
+   */
+  void compactAll() {
+    for (int i = 0; i < size - 1; i++) {
+      compact(slot(i));
+    }
+    finished = Math.max(0, size - 1);
+    materialized = 0;
+  }
+  
+  /**
+   * Moves text of line in given slot to the pages and drops the line, unless
+   * it has styles or characters beyond latin-1. Text already in the pages is
+   * kept if the line is unchanged since materialized. Caller must hold the
+   * write lock.
+   */
+  void compact(int slot) {
+    Line l = ring[slot];
+    if (l == null || l.styles != null) {
+      return;
+    }
+    if (texts[slot] != -1 && l.version == 0) {
+      ring[slot] = null;
+      return;
+    }
+    release(slot);
+    String s = l.string;
+    int n = s.length();
+    if (n > PAGE_SIZE) {
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      if (s.charAt(i) > 0xff) {
+        return;
+      }
+    }
+    int page = (int)(writePos >> PAGE_BITS);
+    int offs = (int)(writePos & (PAGE_SIZE - 1));
+    if (page == pages.size() || offs + n > PAGE_SIZE) {
+      if (offs > 0) {
+        if (pageRefs[page] == 0) {
+          pages.set(page, null);
+        }
+        page++;
+      }
+      if (page == pageRefs.length) {
+        pageRefs = Arrays.copyOf(pageRefs, page * 2);
+      }
+      while (pages.size() <= page) {
+        pages.add(null);
+      }
+      pages.set(page, new byte[PAGE_SIZE]);
+      offs = 0;
+      writePos = (long)page << PAGE_BITS;
+    }
+    byte[] b = pages.get(page);
+    for (int i = 0; i < n; i++) {
+      b[offs + i] = (byte)s.charAt(i);
+    }
+    texts[slot] = (writePos << 1) | (l.nl ? 1 : 0);
+    pageRefs[page]++;
+    writePos += n;
+    ring[slot] = null;
+  }
+  
+  /**
+   * Makes a new Line of the compacted text in given slot and keeps it in
+   * the slot. Caller must hold the write lock.
+   */
+  Line materialize(int slot) {
+    Line l = new Line();
+    l.nl = (texts[slot] & 1) != 0;
+    l.len = lens[slot];
+    l.string = compactedText(slot);
+    ring[slot] = l;
+    if (++materialized > MATERIALIZED_LIMIT && compact) {
+      requestCompact();
+    }
+    return l;
+  }
+
+  /**
+   * Starts a thread compacting all lines once it gets the document lock,
+   * unless one is already started. Appending compacts by itself, but a
+   * document only being read, painted or scrolled through would otherwise
+   * keep every line ever materialized.
+   */
+  void requestCompact() {
+    if (!compactRequested.compareAndSet(false, true)) {
+      return;
+    }
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        boolean again;
+        do {
+          try {
+            synchronized (LineStore.this) {
+              long stamp = writeLock();
+              try {
+                if (compact && materialized > MATERIALIZED_LIMIT) {
+                  compactAll();
+                }
+              } finally {
+                writeUnlock(stamp);
+              }
+            }
+          } finally {
+            compactRequested.set(false);
+          }
+          // readers passing the limit while compacting did not start a thread
+          again = materialized > MATERIALIZED_LIMIT && compact &&
+              compactRequested.compareAndSet(false, true);
+        } while (again);
+      }
+    }, "linestore-compact");
+    t.setDaemon(true);
+    t.start();
+  }
+  
+  /**
+   * Returns the compacted text in given slot.
+   */
+  String compactedText(int slot) {
+    long t = texts[slot];
+    long pos = t >>> 1;
+    int len = (t & 1) != 0 ? lens[slot] - 1 : lens[slot];
+    return new String(pages.get((int)(pos >> PAGE_BITS)), (int)(pos & (PAGE_SIZE - 1)),
+        len, StandardCharsets.ISO_8859_1);
+  }
+  
+  /**
+   * Releases compacted text of given slot, dropping its page if no longer
+   * referred to.
+   */
+  void release(int slot) {
+    long t = texts[slot];
+    if (t == -1) {
+      return;
+    }
+    texts[slot] = -1;
+    int page = (int)((t >>> 1) >> PAGE_BITS);
+    if (--pageRefs[page] == 0 && page != (int)(writePos >> PAGE_BITS)) {
+      pages.set(page, null);
+    }
+  }
+  
+  void clearPages() {
+    pages.clear();
+    pageRefs = new int[16];
+    writePos = 0;
+    materialized = 0;
+  }
+  
+  static long[] newTexts(int cap) {
+    long[] t = new long[cap];
+    Arrays.fill(t, -1);
+    return t;
+  }
+
+  /**
+   * Returns the document offset of given line. Given the line count, the
+   * total length is returned.
+   */
+  public int offset(int index) {
+    if (writer == Thread.currentThread()) {
+      return internalOffset(index);
+    }
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int offs = internalOffset(index);
+        if (lock.validate(stamp)) {
+          return offs;
+        }
+      } catch (RuntimeException e) {
+        if (lock.validate(stamp)) {
+          throw e;
+        }
+      }
+    }
+    stamp = readerLock();
+    try {
+      return internalOffset(index);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  int internalOffset(int index) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+    }
+    if (index == 0) {
+      return 0;
+    }
+    int slot = (head + index) & (ring.length - 1);
+    if (slot > head) {
+      return prefix(slot) - prefix(head);
+    }
+    // wrapped, or a full ring
+    return prefix(ring.length) - prefix(head) + prefix(slot);
+  }
+
+  /**
+   * Returns index of line holding given document offset, which must be
+   * within the document.
+   */
+  public int indexOf(int offs) {
+    if (writer == Thread.currentThread()) {
+      return internalIndexOf(offs);
+    }
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        int index = internalIndexOf(offs);
+        if (lock.validate(stamp)) {
+          return index;
+        }
+      } catch (RuntimeException e) {
+        if (lock.validate(stamp)) {
+          throw e;
+        }
+      }
+    }
+    stamp = readerLock();
+    try {
+      return internalIndexOf(offs);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  int internalIndexOf(int offs) {
+    int slot;
+    int headSum = prefix(head);
+    int upper = prefix(ring.length) - headSum;
+    if (head + size <= ring.length || offs < upper) {
+      slot = find(headSum + offs);
+    } else {
+      // wrapped
+      slot = find(offs - upper);
+    }
+    return (slot - head) & (ring.length - 1);
+  }
+
+  int slot(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+    }
+    return (head + index) & (ring.length - 1);
+  }
+
+  void setLength(int slot, int len) {
+    int delta = len - lens[slot];
+    if (delta == 0) {
+      return;
+    }
+    lens[slot] = len;
+    for (int i = slot + 1; i < tree.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  /**
+   * Returns sum of lengths of slots before given slot.
+   */
+  int prefix(int slot) {
+    int sum = 0;
+    for (int i = slot; i > 0; i -= i & -i) {
+      sum += tree[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Returns the last slot whose prefix sum is at most given sum, i.e. the
+   * slot holding character number sum.
+   */
+  int find(int sum) {
+    int pos = 0;
+    for (int step = ring.length; step > 0; step >>= 1) {
+      if (pos + step < tree.length && tree[pos + step] <= sum) {
+        pos += step;
+        sum -= tree[pos];
+      }
+    }
+    return pos;
+  }
+
+  void grow() {
+    int cap = ring.length * 2;
+    Line[] nring = new Line[cap];
+    int[] nlens = new int[cap];
+    int[] ntree = new int[cap + 1];
+    long[] ntexts = newTexts(cap);
+    for (int i = 0; i < size; i++) {
+      int slot = (head + i) & (ring.length - 1);
+      nring[i] = ring[slot];
+      nlens[i] = lens[slot];
+      ntexts[i] = texts[slot];
+      ntree[i + 1] = nlens[i];
+    }
+    // linear fenwick build
+    for (int i = 1; i <= cap; i++) {
+      int parent = i + (i & -i);
+      if (parent <= cap) {
+        ntree[parent] += ntree[i];
+      }
+    }
+    ring = nring;
+    lens = nlens;
+    tree = ntree;
+    texts = ntexts;
+    head = 0;
+  }
+}
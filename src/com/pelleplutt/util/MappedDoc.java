@@ -0,0 +1,523 @@
+package com.pelleplutt.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.pelleplutt.util.FastTextPane.Line;
+import com.pelleplutt.util.FastTextPane.Style;
+
+/**
+ * Read only FastTextPane document over a memory mapped file, for viewing
+ * files too large for the heap, e.g. long uart captures. Bytes are shown as
+ * latin-1, so a byte is a character.
+ * <p>
+ * A background thread indexes the file, keeping the byte position of every
+ * CHECKPOINT_LINES:th line only. Lines are read from the mapping a block of
+ * checkpoint lines at a time when asked for, normally by painting, and a few
+ * blocks are cached. Lines shown grow as the indexing goes.
+ * <p>
+ * Styles can be added as to any document. Lines having styles are kept when
+ * their block is dropped from the cache. Text cannot be changed.
+ * <p>
+ * Document offsets are ints, so selecting and styling by offset only reach
+ * the first 2 GB of a file. Line based access reaches all of it. Lines
+ * longer than LONGEST_LINE_MAX are split, so a file without newlines is
+ * shown as many lines rather than read into one.
+ * @author petera
+ */
+public class MappedDoc extends FastTextPane.Doc {
+  static final int CHECKPOINT_LINES = 1024;
+  static final int BLOCK_CACHE_SIZE = 16;
+  static final int MAP_BITS = 30;
+  static final int MAP_SIZE = 1 << MAP_BITS;
+  static final int INDEX_BUFFER_SIZE = 64 * 1024;
+  /** Milliseconds between change events while indexing */
+  static final int INDEX_FIRE_PERIOD = 100;
+  /** Characters of a line at most, longer lines are split */
+  static final int LONGEST_LINE_MAX = 16 * 1024;
+
+  final File file;
+  final RandomAccessFile raf;
+  final long fileSize;
+  final MappedByteBuffer[] maps;
+  final MappedLineStore store;
+  final Thread indexer;
+  volatile boolean running = true;
+  volatile boolean indexed;
+  /** Longest line found so far */
+  volatile String longestLine;
+
+  /**
+   * Maps given file and starts indexing it.
+   */
+  public MappedDoc(File file) throws IOException {
+    this.file = file;
+    raf = new RandomAccessFile(file, "r");
+    FileChannel ch = raf.getChannel();
+    fileSize = ch.size();
+    maps = new MappedByteBuffer[(int)((fileSize + MAP_SIZE - 1) >> MAP_BITS)];
+    for (int i = 0; i < maps.length; i++) {
+      long pos = (long)i << MAP_BITS;
+      maps[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_SIZE, fileSize - pos));
+    }
+    store = new MappedLineStore();
+    lines = store;
+    indexer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        index();
+      }
+    }, "mappeddoc-index " + file.getName());
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns true when the whole file is indexed.
+   */
+  public boolean isIndexed() {
+    return indexed;
+  }
+
+  /**
+   * Stops indexing and closes the file. The mapping stays until collected.
+   */
+  public void close() {
+    running = false;
+    try {
+      indexer.join();
+    } catch (InterruptedException ignore) {}
+    try {
+      raf.close();
+    } catch (IOException ignore) {}
+  }
+
+  void index() {
+    byte[] buf = new byte[INDEX_BUFFER_SIZE];
+    long pos = 0;
+    long lineStart = 0;
+    int lineCnt = 0;
+    long longest = 0;
+    long longestStart = -1;
+    long lastFire = System.currentTimeMillis();
+    while (running && pos < fileSize) {
+      int n = (int)Math.min(buf.length, fileSize - pos);
+      read(pos, buf, 0, n);
+      for (int i = 0; i < n; i++) {
+        boolean nl = buf[i] == '\n';
+        if (!nl && pos + i - lineStart < LONGEST_LINE_MAX) {
+          continue;
+        }
+        // newline, or split of a too long line before this byte
+        if (pos + i - lineStart > longest) {
+          longest = pos + i - lineStart;
+          longestStart = lineStart;
+        }
+        lineStart = pos + i + (nl ? 1 : 0);
+        lineCnt++;
+        if (lineCnt % CHECKPOINT_LINES == 0) {
+          store.addCheckpoint(lineCnt / CHECKPOINT_LINES, lineStart);
+        }
+      }
+      pos += n;
+      store.indexed(lineCnt, lineStart);
+      long now = System.currentTimeMillis();
+      if (now - lastFire >= INDEX_FIRE_PERIOD || pos == fileSize) {
+        lastFire = now;
+        if (longestStart >= 0) {
+          fireLongestLine(longestStart, longest);
+          longestStart = -1;
+        }
+        fireOnDocChanged();
+      }
+    }
+    if (running) {
+      // the last line, not ended by newline
+      if (fileSize - lineStart > longest) {
+        fireLongestLine(lineStart, fileSize - lineStart);
+      }
+      store.indexed(lineCnt + 1, fileSize);
+      indexed = true;
+    }
+    fireOnDocChanged();
+  }
+  
+  /**
+   * Lets listeners measure a new longest line, as if added.
+   */
+  void fireLongestLine(long pos, long len) {
+    byte[] b = new byte[(int)Math.min(len, LONGEST_LINE_MAX)];
+    read(pos, b, 0, b.length);
+    longestLine = new String(b, StandardCharsets.ISO_8859_1);
+    fireOnLineAdded(longestLine);
+  }
+  
+  @Override
+  void measureLines(FastTextPane ftp) {
+    // only the longest line matters, and measuring all would read the file
+    String s = longestLine;
+    if (s != null) {
+      ftp.onLineAdded(s);
+    }
+  }
+
+  /**
+   * Reads n bytes at given file position into dst at offs.
+   */
+  void read(long pos, byte[] dst, int offs, int n) {
+    while (n > 0) {
+      int mpos = (int)(pos & (MAP_SIZE - 1));
+      int len = Math.min(n, MAP_SIZE - mpos);
+      maps[(int)(pos >> MAP_BITS)].get(mpos, dst, offs, len);
+      offs += len;
+      pos += len;
+      n -= len;
+    }
+  }
+
+  @Override
+  public void setCompactStorage(boolean compact) {
+    // lines are already only materialized when shown
+  }
+
+  @Override
+  public void queueText(String s, Style style) {
+    throw new UnsupportedOperationException("read only document");
+  }
+
+  @Override
+  void internalAddText(String s, Style style) {
+    throw new UnsupportedOperationException("read only document");
+  }
+
+  @Override
+  protected void internalClear() {
+    throw new UnsupportedOperationException("read only document");
+  }
+
+  @Override
+  protected void addLine(Line l) {
+    throw new UnsupportedOperationException("read only document");
+  }
+
+  @Override
+  protected void appendLine(String s) {
+    throw new UnsupportedOperationException("read only document");
+  }
+
+  @Override
+  public void replaceLine(int lineNbr, String s) {
+    throw new UnsupportedOperationException("read only document");
+  }
+
+  @Override
+  protected void removeLinesUntilLength(int maxLen) {
+  }
+
+  /**
+   * Reads lines from the mapping, splitting them as the indexer does.
+   */
+  class LineReader {
+    byte[] buf = new byte[256];
+    /** Characters of line read */
+    int n;
+    boolean nl;
+
+    void read(long pos) {
+      int max = (int)Math.min(LONGEST_LINE_MAX + 1, fileSize - pos);
+      n = 0;
+      nl = false;
+      while (!nl && n < max) {
+        if (n == buf.length) {
+          buf = Arrays.copyOf(buf, Math.min(buf.length * 2, LONGEST_LINE_MAX + 1));
+        }
+        int chunk = Math.min(buf.length, max) - n;
+        MappedDoc.this.read(pos + n, buf, n, chunk);
+        for (int j = n; j < n + chunk; j++) {
+          if (buf[j] == '\n') {
+            nl = true;
+            chunk = j - n;
+            break;
+          }
+        }
+        n += chunk;
+      }
+      if (n > LONGEST_LINE_MAX) {
+        n = LONGEST_LINE_MAX;
+      }
+    }
+
+    /** Returns file bytes of line read, including newline */
+    int len() {
+      return n + (nl ? 1 : 0);
+    }
+
+    String string() {
+      for (int j = 0; j < n; j++) {
+        if (buf[j] == '\t' || buf[j] == '\r') buf[j] = ' ';
+      }
+      return new String(buf, 0, n, StandardCharsets.ISO_8859_1);
+    }
+  }
+
+  /**
+   * Lines of a checkpoint block, and their file positions.
+   */
+  static class Block {
+    final Line[] lines;
+    /** File position of each line and of the block end */
+    final long[] pos;
+    Block(int count) {
+      lines = new Line[count];
+      pos = new long[count + 1];
+    }
+  }
+
+  /**
+   * Line store reading lines from the mapped file. Uses the document lock,
+   * being the store itself, for its cache instead of the stamped lock, as
+   * the cache changes on every read. Nothing appends to a mapped document,
+   * the lock is only held shortly by indexing and styling.
+   */
+  class MappedLineStore extends LineStore {
+    /** File position of every CHECKPOINT_LINES:th line */
+    volatile long[] checkpoints = new long[64];
+    volatile int lineCount;
+    /** File position where last indexed line ends */
+    volatile long indexedEnd;
+    final Map<Integer, Block> blocks = new LinkedHashMap<Integer, Block>(BLOCK_CACHE_SIZE, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) {
+        if (size() <= BLOCK_CACHE_SIZE) {
+          return false;
+        }
+        Block b = eldest.getValue();
+        int first = eldest.getKey() * CHECKPOINT_LINES;
+        for (int i = 0; i < b.lines.length; i++) {
+          if (b.lines[i].styles != null) {
+            pinned.put(first + i, b.lines[i]);
+          }
+        }
+        return true;
+      }
+    };
+    /** Lines having styles whose block is not cached */
+    final Map<Integer, Line> pinned = new HashMap<Integer, Line>();
+
+    void addCheckpoint(int cp, long pos) {
+      long[] c = checkpoints;
+      if (cp == c.length) {
+        c = Arrays.copyOf(c, cp * 2);
+      }
+      c[cp] = pos;
+      checkpoints = c;
+    }
+
+    void indexed(int lineCount, long end) {
+      synchronized (this) {
+        indexedEnd = end;
+        this.lineCount = lineCount;
+        len = (int)Math.min(Integer.MAX_VALUE, end);
+      }
+    }
+
+    @Override
+    public int size() {
+      return lineCount;
+    }
+
+    @Override
+    public Line get(int index) {
+      synchronized (this) {
+        if (index < 0 || index >= lineCount) {
+          throw new IndexOutOfBoundsException("index " + index + ", size " + lineCount);
+        }
+        return getBlock(index / CHECKPOINT_LINES).lines[index % CHECKPOINT_LINES];
+      }
+    }
+
+    @Override
+    public int get(int from, int count, Line[] dst, int[] offs) {
+      synchronized (this) {
+        if (from < 0) {
+          throw new IndexOutOfBoundsException("index " + from + ", size " + lineCount);
+        }
+        int n = Math.max(0, Math.min(count, lineCount - from));
+        for (int i = 0; i < n; i++) {
+          int index = from + i;
+          Block b = getBlock(index / CHECKPOINT_LINES);
+          dst[i] = b.lines[index % CHECKPOINT_LINES];
+          offs[i] = (int)Math.min(Integer.MAX_VALUE, b.pos[index % CHECKPOINT_LINES]);
+        }
+        return n;
+      }
+    }
+
+    @Override
+    public int offset(int index) {
+      synchronized (this) {
+        if (index < 0 || index > lineCount) {
+          throw new IndexOutOfBoundsException("index " + index + ", size " + lineCount);
+        }
+        long pos;
+        if (index == lineCount) {
+          pos = indexedEnd;
+        } else {
+          pos = getBlock(index / CHECKPOINT_LINES).pos[index % CHECKPOINT_LINES];
+        }
+        return (int)Math.min(Integer.MAX_VALUE, pos);
+      }
+    }
+
+    @Override
+    public int indexOf(int offs) {
+      synchronized (this) {
+        long[] c = checkpoints;
+        int lo = 0;
+        int hi = (lineCount - 1) / CHECKPOINT_LINES;
+        while (lo < hi) {
+          int mid = (lo + hi + 1) >>> 1;
+          if (c[mid] <= offs) {
+            lo = mid;
+          } else {
+            hi = mid - 1;
+          }
+        }
+        Block b = getBlock(lo);
+        int i = Arrays.binarySearch(b.pos, 0, b.lines.length, offs);
+        if (i < 0) {
+          i = -i - 2;
+        }
+        return lo * CHECKPOINT_LINES + i;
+      }
+    }
+
+    /**
+     * Returns given block, reading it if not cached or grown since read.
+     */
+    Block getBlock(int cp) {
+      int first = cp * CHECKPOINT_LINES;
+      int count = Math.min(CHECKPOINT_LINES, lineCount - first);
+      Block b = blocks.get(cp);
+      if (b != null && b.lines.length == count) {
+        return b;
+      }
+      if (b != null) {
+        // the last block grew, keep lines with styles
+        for (int i = 0; i < b.lines.length; i++) {
+          if (b.lines[i].styles != null) {
+            pinned.put(first + i, b.lines[i]);
+          }
+        }
+      }
+      b = readBlock(first, count, checkpoints[cp]);
+      blocks.put(cp, b);
+      return b;
+    }
+
+    Block readBlock(int first, int count, long pos) {
+      Block b = new Block(count);
+      LineReader lr = new LineReader();
+      for (int i = 0; i < count; i++) {
+        b.pos[i] = pos;
+        lr.read(pos);
+        Line l = pinned.remove(first + i);
+        if (l == null) {
+          l = new Line();
+          l.string = lr.string();
+          l.nl = lr.nl;
+          l.len = lr.len();
+        }
+        b.lines[i] = l;
+        pos += lr.len();
+      }
+      b.pos[count] = pos;
+      return b;
+    }
+
+    /**
+     * Reads texts straight from the mapping, leaving the block cache be.
+     * The file never changes and lines never move, so this needs no lock.
+     */
+    @Override
+    public int text(int from, int count, String[] dst, boolean[] nls) {
+      if (from < 0) {
+        throw new IndexOutOfBoundsException("index " + from + ", size " + lineCount);
+      }
+      int n = Math.max(0, Math.min(count, lineCount - from));
+      if (n == 0) {
+        return 0;
+      }
+      int index = from - from % CHECKPOINT_LINES;
+      long pos = checkpoints[index / CHECKPOINT_LINES];
+      LineReader lr = new LineReader();
+      for (; index < from + n; index++) {
+        lr.read(pos);
+        if (index >= from) {
+          dst[index - from] = lr.string();
+          if (nls != null) {
+            nls[index - from] = lr.nl;
+          }
+        }
+        pos += lr.len();
+      }
+      return n;
+    }
+
+    @Override
+    public boolean isMutable() {
+      return false;
+    }
+
+    @Override
+    public Line set(int index, Line l) {
+      throw new UnsupportedOperationException("read only document");
+    }
+
+    @Override
+    public boolean add(Line l) {
+      throw new UnsupportedOperationException("read only document");
+    }
+
+    @Override
+    public Line removeFirst() {
+      throw new UnsupportedOperationException("read only document");
+    }
+
+    @Override
+    public Line dropFirst() {
+      throw new UnsupportedOperationException("read only document");
+    }
+
+    @Override
+    public Line remove(int index) {
+      throw new UnsupportedOperationException("read only document");
+    }
+
+    @Override
+    public void clear() {
+      throw new UnsupportedOperationException("read only document");
+    }
+
+    @Override
+    public void lengthChanged(int index) {
+    }
+
+    @Override
+    public void compactFinished() {
+    }
+  }
+}
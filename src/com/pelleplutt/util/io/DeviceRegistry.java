@@ -0,0 +1,236 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * Keeps a cached list of the devices of a port connector, so that callers
+ * never block on enumeration. The list is refreshed by a background thread.
+ * On Linux /dev is watched, and the devices are only enumerated again when
+ * something is created or deleted there. Elsewhere the list is refreshed
+ * when older than the time to live.
+ * <p>
+ * Each refresh is compared to the previous list, and listeners get one
+ * event per added or removed device.
+ *
+ * @author petera
+ */
+public class DeviceRegistry implements Runnable {
+  public static final long DEFAULT_TTL = 2000;
+  /** Time to let a burst of /dev changes settle before enumerating */
+  static final long SETTLE_TIME = 200;
+
+  static DeviceRegistry defaultRegistry;
+
+  final PortConnector connector;
+  final long ttl;
+  final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+  final Object lock = new Object();
+  volatile String[] devices = new String[0];
+  volatile long lastRefresh;
+  volatile boolean watching;
+  volatile boolean running;
+  boolean refreshRequested;
+  Thread thread;
+  WatchService watchService;
+
+  public interface Listener {
+    void deviceAdded(String device);
+    void deviceRemoved(String device);
+  }
+
+  /**
+   * Returns a registry for the port connector of this context.
+   */
+  public static synchronized DeviceRegistry getDefault() {
+    if (defaultRegistry == null) {
+      defaultRegistry = new DeviceRegistry(PortConnector.getPortConnector(), DEFAULT_TTL);
+    }
+    return defaultRegistry;
+  }
+
+  /**
+   * @param connector connector used for enumeration only, should not be used
+   *        for connecting
+   * @param ttl milliseconds a device list is considered fresh
+   */
+  public DeviceRegistry(PortConnector connector, long ttl) {
+    this.connector = connector;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Returns the cached devices at once. Would the list be stale, a refresh is
+   * requested in background. Before the first enumeration is done, the list
+   * is empty.
+   */
+  public String[] getDevices() {
+    start();
+    if (!watching && System.currentTimeMillis() - lastRefresh > ttl) {
+      requestRefresh();
+    }
+    return devices.clone();
+  }
+
+  /**
+   * Enumerates devices now, blocking until done, and notifies listeners of
+   * any changes.
+   */
+  public String[] refresh() {
+    synchronized (connector) {
+      String[] now = connector.getDevices();
+      if (now == null) {
+        now = new String[0];
+      }
+      Set<String> prev = new TreeSet<String>(Arrays.asList(devices));
+      Set<String> cur = new TreeSet<String>(Arrays.asList(now));
+      devices = cur.toArray(new String[cur.size()]);
+      lastRefresh = System.currentTimeMillis();
+      for (String d : cur) {
+        if (!prev.contains(d)) {
+          for (Listener l : listeners) {
+            l.deviceAdded(d);
+          }
+        }
+      }
+      for (String d : prev) {
+        if (!cur.contains(d)) {
+          for (Listener l : listeners) {
+            l.deviceRemoved(d);
+          }
+        }
+      }
+      return devices.clone();
+    }
+  }
+
+  public void addListener(Listener l) {
+    listeners.add(l);
+    start();
+  }
+
+  public void removeListener(Listener l) {
+    listeners.remove(l);
+  }
+
+  void requestRefresh() {
+    synchronized (lock) {
+      refreshRequested = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Starts background thread unless running.
+   */
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    thread = new Thread(this, "deviceregistry");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops background thread.
+   */
+  public synchronized void stop() {
+    running = false;
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException ignore) {
+      }
+    }
+    requestRefresh();
+  }
+
+  WatchService openWatch() {
+    Path dev = Paths.get("/dev");
+    if (!System.getProperty("os.name").contains("Linux") || !Files.isDirectory(dev)) {
+      return null;
+    }
+    try {
+      WatchService ws = FileSystems.getDefault().newWatchService();
+      dev.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+      return ws;
+    } catch (IOException e) {
+      Log.println("cannot watch /dev, polling: " + e.getMessage());
+      return null;
+    }
+  }
+
+  public void run() {
+    WatchService ws = openWatch();
+    synchronized (this) {
+      watchService = ws;
+    }
+    watching = ws != null;
+    try {
+      while (running) {
+        try {
+          refresh();
+        } catch (Throwable t) {
+          Log.printStackTrace(t);
+        }
+        if (ws != null) {
+          WatchKey key = ws.take();
+          // coalesce the burst of nodes created or removed per device
+          do {
+            key.pollEvents();
+            key.reset();
+          } while ((key = ws.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null);
+        } else {
+          synchronized (lock) {
+            if (!refreshRequested) {
+              lock.wait(listeners.isEmpty() ? 0 : ttl);
+            }
+            refreshRequested = false;
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+    } catch (InterruptedException e) {
+    } finally {
+      watching = false;
+      if (ws != null) {
+        try {
+          ws.close();
+        } catch (IOException ignore) {
+        }
+      }
+    }
+  }
+}
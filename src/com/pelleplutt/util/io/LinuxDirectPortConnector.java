@@ -0,0 +1,244 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+*/
+package com.pelleplutt.util.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import com.pelleplutt.util.AppSystem;
+import com.pelleplutt.util.Log;
+
+/**
+ * Serial port for linux, reading and writing the tty device directly from
+ * the jvm. No uartsocket server process is involved. The tty is configured
+ * by stty, so there is nothing to compile. Modem lines cannot be controlled
+ * nor read in this mode.
+ *
+ * @author petera
+ */
+public class LinuxDirectPortConnector extends PortConnector {
+  public static final String PROP_PATH_STTY = "portconnector.linux.stty";
+  /**
+   * Defines how many reads returning no data before the timeout elapsed are
+   * allowed, in cases where e.g. an FTDI USB UART is unplugged.
+   */
+  static final int MAX_ZERO_READS = 16;
+  /** Longest vtime of the tty, in milliseconds */
+  static final int MAX_VTIME = 255 * 100;
+
+  String device;
+  FileInputStream ttyIn;
+  FileOutputStream ttyOut;
+
+  public String[] getDevices() {
+    File f = new File("/dev/");
+    String[] devices = f.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return (name.startsWith("ttyUSB")||name.startsWith("ttyACM"));
+      }
+    });
+    if (devices != null) {
+      Arrays.sort(devices);
+    }
+    return devices;
+  }
+
+  @Override
+  protected void doConnect(Port portSetting) throws Exception {
+    device = portSetting.portName;
+    if (!device.startsWith("/dev/")) {
+      device = "/dev/" + device;
+    }
+    configure(portSetting);
+    ttyIn = new FileInputStream(device);
+    ttyOut = new FileOutputStream(device);
+    setInputStream(new TTYInputStream(ttyIn));
+    setOutputStream(ttyOut);
+  }
+
+  @Override
+  protected void doDisconnect() throws IOException {
+    AppSystem.closeSilently(ttyIn);
+    AppSystem.closeSilently(ttyOut);
+    ttyIn = null;
+    ttyOut = null;
+  }
+
+  @Override
+  protected void doSetTimeout(long timeout) throws IOException {
+    if (device != null) {
+      stty(timeoutSettings(timeout));
+    }
+  }
+
+  @Override
+  protected void doConfigure(Port portSetting) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(portSetting.baud);
+    sb.append(" raw -echo -echoe -echok -echoctl -echoke -hupcl clocal cread");
+    sb.append(" cs").append(portSetting.databits);
+    sb.append(portSetting.stopbits == Port.STOPBIT_TWO ? " cstopb" : " -cstopb");
+    switch (portSetting.parity) {
+    case Port.PARITY_EVEN:
+      sb.append(" parenb -parodd");
+      break;
+    case Port.PARITY_ODD:
+      sb.append(" parenb parodd");
+      break;
+    default:
+      sb.append(" -parenb");
+      break;
+    }
+    sb.append(portSetting.xonxoff ? " ixon ixoff" : " -ixon -ixoff");
+    sb.append(portSetting.rtscts ? " crtscts" : " -crtscts");
+    sb.append(' ').append(timeoutSettings(timeout));
+    stty(sb.toString());
+  }
+
+  /**
+   * Returns stty vmin and vtime settings for given timeout. A read will block
+   * until at least one byte is received if there is no timeout, otherwise
+   * it returns when the timeout elapses.
+   */
+  static String timeoutSettings(long timeout) {
+    return timeout == 0 ? "min 1 time 0" : ("min 0 time " + vtime(timeout) / 100);
+  }
+
+  /**
+   * Returns vtime in milliseconds for given timeout. Timeouts longer than
+   * MAX_VTIME are split into equal reads.
+   */
+  static long vtime(long timeout) {
+    long reads = (timeout + MAX_VTIME - 1) / MAX_VTIME;
+    long deciSecs = (timeout + reads * 100 - 1) / (reads * 100);
+    return deciSecs * 100;
+  }
+
+  void stty(String settings) throws IOException {
+    String stty = System.getProperty(PROP_PATH_STTY, "stty");
+    String cmd = stty + " -F " + device + " " + settings;
+    Log.println(cmd);
+    AppSystem.ProcessResult res;
+    try {
+      res = AppSystem.run(cmd, null, null, false, true);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+    if (res.code != 0) {
+      throw new IOException("Could not configure " + device + ": " + res.err);
+    }
+  }
+
+  @Override
+  public void setRTSDTR(boolean rtshigh, boolean dtrhigh) throws IOException {
+  }
+
+  @Override
+  public void setRTS(boolean hi) throws IOException {
+  }
+
+  @Override
+  public void setDTR(boolean hi) throws IOException {
+  }
+
+  @Override
+  public int getCTS() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int getDSR() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int getRI() throws IOException {
+    return -1;
+  }
+
+  @Override
+  public int getCD() throws IOException {
+    return -1;
+  }
+
+  /**
+   * The tty returns no data both when vtime elapses and when the device is
+   * gone. Tells these apart by how long the read blocked, and reports a
+   * timeout the same way as the socket based connectors. Vtime is capped at
+   * MAX_VTIME, so longer timeouts are made up of several reads until the
+   * timeout elapses in total. Only a read returning early is a hangup.
+   */
+  class TTYInputStream extends InputStream {
+    final InputStream in;
+    final byte[] cbuf = new byte[1];
+
+    TTYInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int n = read(cbuf, 0, 1);
+      return n == 1 ? (cbuf[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int zeroReads = 0;
+      long start = System.currentTimeMillis();
+      while (true) {
+        long then = System.currentTimeMillis();
+        int n = in.read(b, off, len);
+        if (n >= 0) {
+          return n;
+        }
+        long tmo = timeout;
+        if (tmo > 0) {
+          long now = System.currentTimeMillis();
+          long vtime = vtime(tmo);
+          if (now - then >= vtime / 2) {
+            // vtime elapsed, not a hangup. Timed out unless there is time
+            // left for at least half another read, as vtime is not that exact
+            if (now - start >= tmo - vtime / 2) {
+              throw new SocketTimeoutException("Read timed out");
+            }
+            continue;
+          }
+        }
+        if (++zeroReads > MAX_ZERO_READS) {
+          return -1;
+        }
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -18,6 +18,7 @@ package com.pelleplutt.util.io;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.nio.channels.ByteChannel;
 import java.util.Arrays;
 
 public class LinuxPortConnector extends PortConnector {
@@ -39,6 +40,8 @@ public class LinuxPortConnector extends PortConnector {
 
 	public void doConnect(Port portSetting) throws Exception {
 		UARTSocket linuxUartSocket = new LinuxSerialPortUARTSocket();
+		linuxUartSocket.profile = portSetting.profile;
+		linuxUartSocket.stats = stats;
 		port = (LinuxSerialPortUARTSocket)LinuxSerialPortUARTSocket.createServer(
 		    portSetting.portName, true, linuxUartSocket);
 		configure(portSetting);
@@ -52,6 +55,11 @@ public class LinuxPortConnector extends PortConnector {
 		}
 	}
 
+	@Override
+	public ByteChannel getChannel() {
+		return port == null ? null : port.getDataChannel();
+	}
+
 	@Override
 	protected void doSetTimeout(long timeout) throws IOException {
 		if (port != null) {
@@ -148,6 +156,7 @@ public class LinuxPortConnector extends PortConnector {
 			parity = LinuxSerialPortUARTSocket.PARITY_NONE;
 			break;
 		}
+		port.profile = portSetting.profile;
 		port.configure(baud, databits, parity, stopbits, portSetting.xonxoff, portSetting.rtscts, portSetting.dsrdtr,
 				timeout != 0 ? (timeout + 1000) : 0);
 	}
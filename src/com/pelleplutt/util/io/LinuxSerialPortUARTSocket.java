@@ -30,12 +30,37 @@ public class LinuxSerialPortUARTSocket extends UARTSocket {
 	public static final String PROP_PATH_BIN = "portconnector.linux.bin";
 	public static final String PROP_PATH_SRC = "portconnector.linux.src";
 	public static final String PROP_NAME = "portconnector.linux.name";
+	/** If set to true, server serves all ports from one epoll event loop thread */
+	public static final String PROP_EVENT_LOOP = "portconnector.linux.eventloop";
 	
-	public static final int VERSION = 0x00010003;
+	public static final int VERSION = 0x00010007;
 	
 	protected LinuxSerialPortUARTSocket() {
 	}
 
+	@Override
+	public boolean supportsUnixSocket() {
+		return true;
+	}
+
+	@Override
+	public boolean supportsProfile() {
+		return true;
+	}
+
+	@Override
+	public boolean supportsSharedControl() {
+		return true;
+	}
+
+	@Override
+	protected String getExecCommand(int serverPort) {
+		String unixPath = getUnixSocketPath("localhost", serverPort);
+		return getBinFile().getAbsolutePath() + 
+				(Boolean.getBoolean(PROP_EVENT_LOOP) ? " -e " : " ") + serverPort + 
+				(unixPath != null ? " " + unixPath : "");
+	}
+
 	String preprocessPortName(String portname) {
 		if (!portname.startsWith("/dev/")) {
 			portname = "/dev/" + portname;
@@ -51,6 +51,13 @@ public class Port implements Comparable<Port> {
 	public static final int BYTESIZE_7 = 7;
 	public static final int BYTESIZE_8 = 8;
 
+	/** Leave socket and serial driver settings as they are */
+	public static final int PROFILE_DEFAULT = 0;
+	/** Favour short round trips, e.g. request/response protocols */
+	public static final int PROFILE_LATENCY = 1;
+	/** Favour bulk transfers */
+	public static final int PROFILE_THROUGHPUT = 2;
+
 	public String portName;
 	public String uiName;
 	public int baud;
@@ -60,6 +67,7 @@ public class Port implements Comparable<Port> {
 	public boolean xonxoff;
 	public boolean rtscts;
 	public boolean dsrdtr;
+	public int profile;
 
 	public Port() {
 		portName = "undef";
@@ -68,6 +76,7 @@ public class Port implements Comparable<Port> {
 		parity = PARITY_NO;
 		stopbits = STOPBIT_ONE;
 		databits = BYTESIZE_8;
+		profile = PROFILE_DEFAULT;
 	}
 
 	public static int parseParity(String s) {
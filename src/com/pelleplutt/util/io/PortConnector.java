@@ -15,13 +15,14 @@
  */
 package com.pelleplutt.util.io;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PushbackInputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
 
 import com.pelleplutt.util.AppSystem;
 import com.pelleplutt.util.Log;
@@ -29,7 +30,8 @@ import com.pelleplutt.util.Log;
 /**
  * Manages the opening and closing of a serial port, returning inputstream and
  * outputstream to the resource. Also takes care of optional watchdog feature
- * would there be an I/O operation that times out. Designed for single thread
+ * would there be an I/O operation that times out. The watchdogs of all ports
+ * share one timer wheel thread. Designed for single thread
  * access to the port, i.e. having multiple threads calling read or write
  * simultaneously will cause weird effects. Different threads in different
  * points in time is ok.
@@ -37,13 +39,28 @@ import com.pelleplutt.util.Log;
  * @author petera
  */
 public abstract class PortConnector {
-  PushbackInputStream inputStream;
+  /**
+   * Selects backend, e.g. "direct" for in-process tty access on Linux, or
+   * "virtual" for simulated ports
+   */
+  public static final String PROP_BACKEND = "portconnector.backend";
+  public static final String BACKEND_DIRECT = "direct";
+  public static final String BACKEND_VIRTUAL = "virtual";
+  /** If set to true, ports are reconnected automatically when lost */
+  public static final String PROP_RECONNECT = "portconnector.reconnect";
+  /** If set to true, I/O statistics are collected for all ports */
+  public static final String PROP_STATS = "portconnector.stats";
+
+  PortInputStream inputStream;
   OutputStream outputStream;
   long timeout = 0;
   long lastActivity;
   boolean connected;
-  Watchdog watchdog;
-  Monitor watchdogMonitor;
+  volatile long watchdogTimeout;
+  volatile boolean watchdogInterrupt;
+  final Watch readWatch = new Watch("read");
+  final Watch writeWatch = new Watch("write");
+  PortStats stats = Boolean.getBoolean(PROP_STATS) ? new PortStats() : null;
 
   /**
    * Returns the portconnector instance for this context. OS dependent.
@@ -51,8 +68,23 @@ public abstract class PortConnector {
    * @return
    */
   public static PortConnector getPortConnector() {
+    PortConnector pc = createPortConnector();
+    if (Boolean.getBoolean(PROP_RECONNECT)) {
+      pc = new ReconnectingPortConnector(pc);
+    }
+    return pc;
+  }
+
+  static PortConnector createPortConnector() {
     // TODO PETER check if there is python3 and pyserial installed, else use native
     PortConnector pc = null;
+    String backend = System.getProperty(PROP_BACKEND);
+    if (BACKEND_VIRTUAL.equals(backend)) {
+      return new VirtualPortConnector();
+    }
+    if (BACKEND_DIRECT.equals(backend) && System.getProperty("os.name").contains("Linux")) {
+      return new LinuxDirectPortConnector();
+    }
     String os = System.getProperty("os.name");
     os = "alwaysusepython";
     if (System.getProperty(PySerialPortUARTSocket.PROP_PATH_BIN) == null) {
@@ -112,7 +144,8 @@ public abstract class PortConnector {
   protected abstract void doSetTimeout(long timeout) throws IOException;
 
   /**
-   * Returns a list of available devices
+   * Returns a list of available devices. May be slow, see DeviceRegistry for
+   * a cached list with change notifications.
    * 
    * @return list of devices or null
    */
@@ -148,16 +181,52 @@ public abstract class PortConnector {
    */
   public void setTimeout(long timeout) throws IOException {
     doSetTimeout(timeout);
-    if (watchdog != null) {
-      synchronized (watchdogMonitor) {
-        this.timeout = timeout;
-        watchdogMonitor.notify();
-      }
-    } else {
-      this.timeout = timeout;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Enables watchdog for all reads and writes on the streams of this
+   * connection. Would an I/O call block longer than given timeout, the
+   * stream is closed so the call fails, or if interrupt is set, the blocked
+   * thread is interrupted instead. Unlike the stream timeout, this also
+   * covers writes and reads stuck in a dead server.
+   * <p>
+   * Where the streams are those of a blocking channel, see getChannel, an
+   * interrupt closes the connection regardless, so the stream is closed
+   * instead of interrupting.
+   * 
+   * @param timeout watchdog timeout in milliseconds, 0 disables
+   * @param interrupt interrupt the blocked thread rather than closing stream
+   */
+  public void setWatchdog(long timeout, boolean interrupt) {
+    watchdogInterrupt = interrupt;
+    watchdogTimeout = timeout;
+    if (timeout == 0) {
+      TimerWheel.disarm(readWatch);
+      TimerWheel.disarm(writeWatch);
+    }
+  }
+
+  /**
+   * Enables or disables I/O statistics. Takes effect on next connect. When
+   * enabled, statistics are also registered as an MXBean while connected.
+   */
+  public void setStatsEnabled(boolean enabled) {
+    if (enabled && stats == null) {
+      stats = new PortStats();
+    } else if (!enabled && stats != null) {
+      stats.unregister();
+      stats = null;
     }
   }
 
+  /**
+   * Returns I/O statistics, or null if not enabled.
+   */
+  public PortStats getStats() {
+    return stats;
+  }
+
   /**
    * Connects using given portsetting
    * 
@@ -166,14 +235,9 @@ public abstract class PortConnector {
    */
   public void connect(Port portSetting) throws Exception {
     doConnect(portSetting);
-    // create new monitor for this new watchdog thread so the eventual old
-    // one can RIP
-    // watchdogMonitor = new Monitor();
-    // synchronized (watchdogMonitor) {
-    // watchdogMonitor.running = true;
-    // watchdog = new Watchdog(watchdogMonitor);
-    // new Thread(watchdog, "portwatchdog").start();
-    // }
+    if (stats != null) {
+      stats.register(portSetting.portName);
+    }
     try {
       setRTSDTR(true, true);
     } catch (Exception e) {
@@ -194,10 +258,11 @@ public abstract class PortConnector {
    */
   public void disconnect() throws IOException {
     doDisconnect();
-    // synchronized (watchdogMonitor) {
-    // watchdogMonitor.running = false;
-    // watchdogMonitor.notifyAll();
-    // }
+    if (stats != null) {
+      stats.unregister();
+    }
+    TimerWheel.disarm(readWatch);
+    TimerWheel.disarm(writeWatch);
     AppSystem.closeSilently(inputStream);
     AppSystem.closeSilently(outputStream);
   }
@@ -210,29 +275,68 @@ public abstract class PortConnector {
       doDisconnect();
     } catch (IOException e) {
     }
-    // synchronized (watchdogMonitor) {
-    // watchdogMonitor.running = false;
-    // watchdogMonitor.notifyAll();
-    // }
+    if (stats != null) {
+      stats.unregister();
+    }
+    TimerWheel.disarm(readWatch);
+    TimerWheel.disarm(writeWatch);
     AppSystem.closeSilently(inputStream);
     AppSystem.closeSilently(outputStream);
   }
 
   /**
-   * Returns the inputstream from this connection
+   * Returns the inputstream from this connection. The stream is a
+   * PortInputStream, see getPortInputStream.
    * 
    * @return
    */
   public PushbackInputStream getInputStream() {
     return inputStream;
   }
+
+  /**
+   * Returns the inputstream from this connection. The stream is buffered and
+   * supports peeking and unreading any number of bytes.
+   * 
+   * @return
+   */
+  public PortInputStream getPortInputStream() {
+    return inputStream;
+  }
   
   public void dispose() {
   }
 
   protected void setInputStream(InputStream inputStream) {
-    this.inputStream = new PushbackInputStream(
-    /* new WatchedInputStream */(inputStream), 1);
+    if (stats != null) {
+      inputStream = stats.wrap(inputStream);
+    }
+    readWatch.stream = inputStream;
+    this.inputStream = new PortInputStream(new WatchedInputStream(inputStream));
+  }
+
+  /**
+   * Returns a channel to the port, for backends where there is one, i.e.
+   * those talking to a uartsocket server and SocketPortConnector. The
+   * channel is a SocketChannel and thus also a SelectableChannel. Reading
+   * the channel bypasses the inputstream, including data already buffered
+   * in it, as well as watchdog and statistics.
+   * <p>
+   * A TCP channel is blocking. Its streams are those of the channel, so
+   * interrupting a thread blocked in reading or writing them closes the
+   * connection. Would the channel be put in non-blocking mode, the streams
+   * may no longer be used.
+   * <p>
+   * A unix domain socket channel, see UARTSocket.PROP_UNIX_SOCKET, is
+   * non-blocking and registered with selectors of the streams. Reads may
+   * return 0, and configureBlocking(true) throws
+   * IllegalBlockingModeException. Register it with an own selector to wait
+   * for data.
+   * 
+   * @return the channel, or null if not supported or not connected
+   */
+  public ByteChannel getChannel() {
+    return null;
   }
 
   /**
@@ -245,75 +349,62 @@ public abstract class PortConnector {
   }
 
   protected void setOutputStream(OutputStream outputStream) {
-    this.outputStream = /* new WatchedOutputStream */(outputStream);
+    if (stats != null) {
+      outputStream = stats.wrap(outputStream);
+    }
+    writeWatch.stream = outputStream;
+    this.outputStream = new WatchedOutputStream(outputStream);
   }
 
   /**
-   * Watchdog runner
+   * Arms given watch if watchdog is enabled.
    */
-  class Watchdog implements Runnable {
-    Monitor monitor;
-    long timeoutSetting;
-    boolean active;
-    List<Thread> waiters = new ArrayList<Thread>();
-
-    public Watchdog(Monitor watchdogMonitor) {
-      this.monitor = watchdogMonitor;
-      this.timeoutSetting = PortConnector.this.timeout;
+  final void arm(Watch w) {
+    long tmo = watchdogTimeout;
+    if (tmo > 0) {
+      w.thread = Thread.currentThread();
+      TimerWheel.get().arm(w, tmo * 1000000L);
     }
+  }
+
+  /**
+   * Returns true if interrupting a thread blocked on the streams closes the
+   * connection, i.e. if they are those of a blocking channel.
+   */
+  boolean interruptCloses() {
+    ByteChannel c = getChannel();
+    return c instanceof SelectableChannel && ((SelectableChannel)c).isBlocking();
+  }
 
-    public void run() {
-      synchronized (monitor) {
-        while (monitor.running) {
+  /**
+   * Watchdog timeout for one direction of the port, reused for every I/O
+   * call.
+   */
+  class Watch extends TimerWheel.Timeout {
+    final String what;
+    volatile Closeable stream;
+    volatile Thread thread;
+
+    Watch(String what) {
+      this.what = what;
+    }
+
+    @Override
+    void expired() {
+      Log.println("watchdog: " + what + " timed out after " + watchdogTimeout + "ms");
+      if (watchdogInterrupt && !interruptCloses()) {
+        Thread t = thread;
+        if (t != null) {
+          t.interrupt();
+        }
+      } else {
+        Closeable c = stream;
+        if (c != null) {
           try {
-            long then = System.currentTimeMillis();
-            if (!active || timeoutSetting == 0) {
-              monitor.wait();
-            } else {
-              monitor.wait(timeoutSetting);
-            }
-            long now = System.currentTimeMillis();
-            if (Thread.interrupted()) {
-              throw new InterruptedException();
-            } else if (!monitor.running) {
-              // signal because of disconnection, loop will exit
-            } else if (timeoutSetting != PortConnector.this.timeout) {
-              // change in timeout, simply set new and rerun
-              timeoutSetting = PortConnector.this.timeout;
-            } else if (active && timeoutSetting > 0
-                && now - then >= timeoutSetting - 10) {
-              // timed out!
-              for (Thread waiter : waiters) {
-                // StackTraceElement[] stes = waiter.getStackTrace();
-                // for (StackTraceElement stackTraceElement : stes) {
-                // System.out.println(stackTraceElement);
-                // }
-                waiter.interrupt();
-              }
-            } else {
-              // spin
-            }
-          } catch (InterruptedException ie) {
-            // TODO:What to do?
+            c.close();
+          } catch (IOException ignore) {
           }
         }
-        waiters.clear();
-      }
-    }
-
-    public void start() {
-      synchronized (monitor) {
-        active = true;
-        waiters.add(Thread.currentThread());
-        monitor.notify();
-      }
-    }
-
-    public void stop() {
-      synchronized (monitor) {
-        active = false;
-        waiters.remove(Thread.currentThread());
-        monitor.notify();
       }
     }
   }
@@ -327,10 +418,7 @@ public abstract class PortConnector {
     InputStream delegate;
 
     public int available() throws IOException {
-      watchdog.start();
-      int a = delegate.available();
-      watchdog.stop();
-      return a;
+      return delegate.available();
     }
 
     public void close() throws IOException {
@@ -346,9 +434,7 @@ public abstract class PortConnector {
     }
 
     public void mark(int readlimit) {
-      watchdog.start();
       delegate.mark(readlimit);
-      watchdog.stop();
     }
 
     public boolean markSupported() {
@@ -356,24 +442,25 @@ public abstract class PortConnector {
     }
 
     public int read() throws IOException {
-      watchdog.start();
-      int r = delegate.read();
-      watchdog.stop();
-      return r;
+      arm(readWatch);
+      try {
+        return delegate.read();
+      } finally {
+        TimerWheel.disarm(readWatch);
+      }
     }
 
     public int read(byte[] b, int off, int len) throws IOException {
-      watchdog.start();
-      int n = delegate.read(b, off, len);
-      watchdog.stop();
-      return n;
+      arm(readWatch);
+      try {
+        return delegate.read(b, off, len);
+      } finally {
+        TimerWheel.disarm(readWatch);
+      }
     }
 
     public int read(byte[] b) throws IOException {
-      watchdog.start();
-      int n = delegate.read(b);
-      watchdog.stop();
-      return n;
+      return read(b, 0, b.length);
     }
 
     public void reset() throws IOException {
@@ -381,10 +468,12 @@ public abstract class PortConnector {
     }
 
     public long skip(long n) throws IOException {
-      watchdog.start();
-      long nn = delegate.skip(n);
-      watchdog.stop();
-      return nn;
+      arm(readWatch);
+      try {
+        return delegate.skip(n);
+      } finally {
+        TimerWheel.disarm(readWatch);
+      }
     }
 
     public String toString() {
@@ -413,9 +502,12 @@ public abstract class PortConnector {
     }
 
     public void flush() throws IOException {
-      watchdog.start();
-      delegate.flush();
-      watchdog.stop();
+      arm(writeWatch);
+      try {
+        delegate.flush();
+      } finally {
+        TimerWheel.disarm(writeWatch);
+      }
     }
 
     public int hashCode() {
@@ -426,30 +518,30 @@ public abstract class PortConnector {
       return delegate.toString();
     }
 
-    public void write(byte[] arg0, int arg1, int arg2) throws IOException {
-      watchdog.start();
-      delegate.write(arg0, arg1, arg2);
-      watchdog.stop();
+    public void write(byte[] b, int off, int len) throws IOException {
+      arm(writeWatch);
+      try {
+        delegate.write(b, off, len);
+      } finally {
+        TimerWheel.disarm(writeWatch);
+      }
     }
 
     public void write(byte[] b) throws IOException {
-      watchdog.start();
-      delegate.write(b);
-      watchdog.stop();
+      write(b, 0, b.length);
     }
 
-    public void write(int arg0) throws IOException {
-      watchdog.start();
-      delegate.write(arg0);
-      watchdog.stop();
+    public void write(int b) throws IOException {
+      arm(writeWatch);
+      try {
+        delegate.write(b);
+      } finally {
+        TimerWheel.disarm(writeWatch);
+      }
     }
 
     public WatchedOutputStream(OutputStream delegate) {
       this.delegate = delegate;
     }
   }
-
-  class Monitor {
-    boolean running;
-  }
 }
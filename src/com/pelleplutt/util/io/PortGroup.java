@@ -0,0 +1,231 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * Opens, configures and closes many ports concurrently. At most parallelism
+ * ports are handled at a time. The uartsocket based connectors all talk to
+ * the same server process, so mostly this overlaps the control round trips
+ * of different ports.
+ * <p>
+ * A port failing does not stop the others. Failures are returned per port
+ * and also reported to the listener, if any, as they happen.
+ *
+ * @author petera
+ */
+public class PortGroup {
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  final int parallelism;
+  final Map<Port, PortConnector> connectors = new LinkedHashMap<Port, PortConnector>();
+  /** Names of ports opened or being opened, guarded by connectors */
+  final Set<String> claimed = new HashSet<String>();
+  Listener listener;
+  long timeout;
+
+  public interface Listener {
+    /** Called when given port is connected and configured */
+    void opened(Port port, PortConnector connector);
+    /** Called when given port could not be opened, configured or closed */
+    void failed(Port port, Throwable t);
+  }
+
+  /**
+   * Operation on one port, run by the group
+   */
+  interface Op {
+    void run(Port port) throws Exception;
+  }
+
+  public PortGroup() {
+    this(DEFAULT_PARALLELISM);
+  }
+
+  public PortGroup(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Sets stream timeout applied to ports when opened.
+   */
+  public void setTimeout(long timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Returns connector for given port if opened by this group, else null.
+   */
+  public PortConnector getConnector(Port port) {
+    synchronized (connectors) {
+      return connectors.get(port);
+    }
+  }
+
+  /**
+   * Returns all ports currently opened by this group.
+   */
+  public List<Port> getPorts() {
+    synchronized (connectors) {
+      return new ArrayList<Port>(connectors.keySet());
+    }
+  }
+
+  /**
+   * Creates the connector for given port. Default is the connector for this
+   * context.
+   */
+  protected PortConnector createConnector(Port port) {
+    return PortConnector.getPortConnector();
+  }
+
+  /**
+   * Connects and configures given ports. Ports of a device already opened,
+   * or being opened, by this group are skipped.
+   * @return failures per port, empty if all ports were opened
+   */
+  public Map<Port, Throwable> open(Collection<Port> ports) {
+    return forEach(ports, new Op() {
+      public void run(Port port) throws Exception {
+        // claim the device first, so a port given twice, or two ports of
+        // the same device, are opened once
+        synchronized (connectors) {
+          if (!claimed.add(port.portName)) {
+            return;
+          }
+        }
+        PortConnector pc = createConnector(port);
+        try {
+          pc.connect(port);
+          if (timeout > 0) {
+            pc.setTimeout(timeout);
+          }
+        } catch (Exception e) {
+          pc.disconnectSilently();
+          synchronized (connectors) {
+            claimed.remove(port.portName);
+          }
+          throw e;
+        }
+        synchronized (connectors) {
+          connectors.put(port, pc);
+        }
+        if (listener != null) {
+          listener.opened(port, pc);
+        }
+      }
+    });
+  }
+
+  /**
+   * Reconfigures given ports, that must have been opened by this group.
+   * @return failures per port, empty if all ports were configured
+   */
+  public Map<Port, Throwable> configure(Collection<Port> ports) {
+    return forEach(ports, new Op() {
+      public void run(Port port) throws Exception {
+        PortConnector pc = getConnector(port);
+        if (pc == null) {
+          throw new IllegalStateException(port.portName + " not opened");
+        }
+        pc.configure(port);
+      }
+    });
+  }
+
+  /**
+   * Disconnects all ports opened by this group.
+   * @return failures per port, empty if all ports were closed cleanly
+   */
+  public Map<Port, Throwable> close() {
+    return forEach(getPorts(), new Op() {
+      public void run(Port port) throws Exception {
+        PortConnector pc;
+        synchronized (connectors) {
+          pc = connectors.remove(port);
+          claimed.remove(port.portName);
+        }
+        if (pc != null) {
+          pc.disconnect();
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs given operation for all ports on a bounded pool, waiting for all
+   * to finish.
+   */
+  Map<Port, Throwable> forEach(Collection<Port> ports, final Op op) {
+    final Map<Port, Throwable> failures = new LinkedHashMap<Port, Throwable>();
+    if (ports.isEmpty()) {
+      return failures;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, ports.size()),
+        new ThreadFactory() {
+          int n;
+          public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "portgroup-" + (n++));
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    for (final Port port : ports) {
+      pool.execute(new Runnable() {
+        public void run() {
+          try {
+            op.run(port);
+          } catch (Throwable t) {
+            Log.println(port.portName + " failed: " + t.getMessage());
+            synchronized (failures) {
+              failures.put(port, t);
+            }
+            if (listener != null) {
+              listener.failed(port, t);
+            }
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+    synchronized (failures) {
+      return failures;
+    }
+  }
+}
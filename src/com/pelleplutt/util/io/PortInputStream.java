@@ -0,0 +1,266 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Buffered port inputstream with peek and unread of any number of bytes.
+ * Reading byte by byte is served from the buffer, and a fill reads whatever
+ * the underlying stream has at hand, so no more than one blocking read is
+ * made per call and timeouts behave as for the unbuffered stream. Bytes
+ * already buffered when a read times out are kept.
+ * <p>
+ * Extends PushbackInputStream for compatibility but overrides all of it,
+ * and like the rest of the port is not synchronized.
+ *
+ * @author petera
+ */
+public class PortInputStream extends PushbackInputStream {
+  public static final int DEFAULT_BUFFER_SIZE = 4096;
+  /** Room kept in front of fresh data so unread seldom needs to move bytes */
+  static final int HEADROOM = 16;
+
+  byte[] rbuf;
+  int rpos;
+  int rlim;
+
+  public PortInputStream(InputStream in) {
+    this(in, DEFAULT_BUFFER_SIZE);
+  }
+
+  public PortInputStream(InputStream in, int size) {
+    super(in, 1);
+    rbuf = new byte[HEADROOM + size];
+    rpos = rlim = HEADROOM;
+  }
+
+  /**
+   * Reads once from underlying stream into buffer.
+   * @return number of bytes read, or -1 on end of stream
+   */
+  int fill() throws IOException {
+    if (rpos == rlim) {
+      rpos = rlim = HEADROOM;
+    } else if (rlim == rbuf.length) {
+      ensureCapacity(rlim - rpos + 1);
+    }
+    int n = in.read(rbuf, rlim, rbuf.length - rlim);
+    if (n > 0) {
+      rlim += n;
+    }
+    return n;
+  }
+
+  /**
+   * Makes room for at least given number of bytes from rpos and onwards.
+   */
+  void ensureCapacity(int len) {
+    int avail = rlim - rpos;
+    if (rpos + len <= rbuf.length) {
+      return;
+    }
+    byte[] dst = HEADROOM + len <= rbuf.length ? rbuf : new byte[HEADROOM + Math.max(len, rbuf.length * 2)];
+    System.arraycopy(rbuf, rpos, dst, HEADROOM, avail);
+    rbuf = dst;
+    rpos = HEADROOM;
+    rlim = HEADROOM + avail;
+  }
+
+  /**
+   * Returns number of bytes readable without touching the underlying stream.
+   */
+  public int buffered() {
+    return rlim - rpos;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (rpos == rlim && fill() <= 0) {
+      return -1;
+    }
+    return rbuf[rpos++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int avail = rlim - rpos;
+    if (avail == 0) {
+      if (len >= rbuf.length - HEADROOM) {
+        // large read, no point in copying via buffer
+        return in.read(b, off, len);
+      }
+      if (fill() <= 0) {
+        return -1;
+      }
+      avail = rlim - rpos;
+    }
+    int n = Math.min(avail, len);
+    System.arraycopy(rbuf, rpos, b, off, n);
+    rpos += n;
+    return n;
+  }
+
+  /**
+   * Returns next byte without consuming it, blocking if nothing is buffered.
+   * @return next byte or -1 on end of stream
+   */
+  public int peek() throws IOException {
+    if (rpos == rlim && fill() <= 0) {
+      return -1;
+    }
+    return rbuf[rpos] & 0xff;
+  }
+
+  /**
+   * Copies next len bytes without consuming them. Blocks until len bytes
+   * are buffered or end of stream. Would the read time out, the bytes read
+   * so far remain buffered.
+   * @return number of bytes peeked, less than len only at end of stream
+   */
+  public int peek(byte[] b, int off, int len) throws IOException {
+    ensureCapacity(len);
+    while (rlim - rpos < len) {
+      if (fill() < 0) {
+        break;
+      }
+    }
+    int n = Math.min(rlim - rpos, len);
+    System.arraycopy(rbuf, rpos, b, off, n);
+    return n;
+  }
+
+  @Override
+  public void unread(int b) throws IOException {
+    if (rpos == 0) {
+      makeHeadroom(1);
+    }
+    rbuf[--rpos] = (byte)b;
+  }
+
+  @Override
+  public void unread(byte[] b) throws IOException {
+    unread(b, 0, b.length);
+  }
+
+  /**
+   * Pushes back given bytes, so that b[off] is the next byte to be read.
+   */
+  @Override
+  public void unread(byte[] b, int off, int len) throws IOException {
+    if (rpos < len) {
+      makeHeadroom(len);
+    }
+    rpos -= len;
+    System.arraycopy(b, off, rbuf, rpos, len);
+  }
+
+  void makeHeadroom(int len) {
+    int avail = rlim - rpos;
+    int front = len + HEADROOM;
+    byte[] dst = front + avail <= rbuf.length ? rbuf : new byte[Math.max(front + avail, rbuf.length * 2)];
+    System.arraycopy(rbuf, rpos, dst, front, avail);
+    rbuf = dst;
+    rpos = front;
+    rlim = front + avail;
+  }
+
+  /**
+   * Reads bytes up to and including given delimiter, or until len bytes
+   * are read. Would the read fail, e.g. by timeout, bytes read so far are
+   * pushed back.
+   * @return number of bytes read, or -1 if end of stream was reached before
+   *         any byte was read
+   */
+  public int readUntil(int delimiter, byte[] b, int off, int len) throws IOException {
+    byte d = (byte)delimiter;
+    int count = 0;
+    while (count < len) {
+      if (rpos == rlim) {
+        int r;
+        try {
+          r = fill();
+        } catch (IOException e) {
+          unread(b, off, count);
+          throw e;
+        }
+        if (r <= 0) {
+          break;
+        }
+      }
+      int end = Math.min(rlim, rpos + len - count);
+      int p = rpos;
+      while (p < end && rbuf[p] != d) {
+        p++;
+      }
+      boolean found = p < end;
+      if (found) {
+        p++;
+      }
+      int n = p - rpos;
+      System.arraycopy(rbuf, rpos, b, off + count, n);
+      rpos = p;
+      count += n;
+      if (found) {
+        break;
+      }
+    }
+    return count == 0 && len > 0 ? -1 : count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+    if (rpos == rlim && fill() <= 0) {
+      return 0;
+    }
+    int s = (int)Math.min(rlim - rpos, n);
+    rpos += s;
+    return s;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (rlim - rpos) + in.available();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readlimit) {
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  @Override
+  public void close() throws IOException {
+    rpos = rlim = HEADROOM;
+    in.close();
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * I/O statistics of a port: bytes, operations and time spent blocking in
+ * each direction, a histogram of read sizes, exponentially weighted
+ * throughput, and round trip times of uartsocket control commands.
+ * <p>
+ * Counters are LongAdders, so a port read or written from several threads
+ * counts right, while a single thread doing I/O pays little more than plain
+ * field updates and two nanoTime calls per I/O call. Values read while I/O
+ * is ongoing may be a count or so apart.
+ *
+ * @author petera
+ */
+public class PortStats implements PortStatsMXBean {
+  public static final int HISTOGRAM_BUCKETS = 16;
+  static final long EWMA_WINDOW_NS = 250 * 1000 * 1000L;
+  static final double EWMA_ALPHA = 0.3;
+
+  final Direction rx = new Direction();
+  final Direction tx = new Direction();
+  final LongAdder[] readSizes = new LongAdder[HISTOGRAM_BUCKETS];
+  long ctrlCount;
+  long ctrlNanos;
+  long ctrlMaxNanos;
+  ObjectName objectName;
+
+  public PortStats() {
+    for (int i = 0; i < readSizes.length; i++) {
+      readSizes[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Counters of one direction
+   */
+  static class Direction {
+    final LongAdder bytes = new LongAdder();
+    final LongAdder ops = new LongAdder();
+    final LongAdder blockedNanos = new LongAdder();
+    final LongAdder windowBytes = new LongAdder();
+    // below written holding this
+    volatile double ewma;
+    volatile long windowStart = System.nanoTime();
+
+    void record(int n, long t0, long t1) {
+      ops.increment();
+      blockedNanos.add(t1 - t0);
+      if (n > 0) {
+        bytes.add(n);
+        windowBytes.add(n);
+      }
+      if (t1 - windowStart >= EWMA_WINDOW_NS) {
+        synchronized (this) {
+          long dt = t1 - windowStart;
+          if (dt >= EWMA_WINDOW_NS) {
+            double rate = windowBytes.sumThenReset() * 1e9 / dt;
+            ewma = decay(ewma, dt - EWMA_WINDOW_NS) * (1 - EWMA_ALPHA) + rate * EWMA_ALPHA;
+            windowStart = t1;
+          }
+        }
+      }
+    }
+
+    /**
+     * Returns rate, decayed for time since last window when there was no
+     * traffic.
+     */
+    double rate() {
+      return decay(ewma, System.nanoTime() - windowStart - EWMA_WINDOW_NS);
+    }
+
+    static double decay(double v, long idleNanos) {
+      if (idleNanos <= 0) {
+        return v;
+      }
+      return v * Math.pow(1 - EWMA_ALPHA, (double)idleNanos / EWMA_WINDOW_NS);
+    }
+
+    synchronized void reset() {
+      bytes.reset();
+      ops.reset();
+      blockedNanos.reset();
+      windowBytes.reset();
+      ewma = 0;
+    }
+  }
+
+  /**
+   * Immutable copy of the statistics at one point in time.
+   */
+  public static class Snapshot {
+    public final long rxBytes, rxOps, rxBlockedMillis;
+    public final double rxBytesPerSecond;
+    public final long txBytes, txOps, txBlockedMillis;
+    public final double txBytesPerSecond;
+    /** Number of reads per size, bucket n holds sizes 2^(n-1) to 2^n-1 */
+    public final long[] readSizeHistogram;
+    public final long controlCommands;
+    public final double controlAverageMicros;
+    public final long controlMaxMicros;
+
+    Snapshot(PortStats s) {
+      rxBytes = s.getRxBytes();
+      rxOps = s.getRxOps();
+      rxBlockedMillis = s.getRxBlockedMillis();
+      rxBytesPerSecond = s.getRxBytesPerSecond();
+      txBytes = s.getTxBytes();
+      txOps = s.getTxOps();
+      txBlockedMillis = s.getTxBlockedMillis();
+      txBytesPerSecond = s.getTxBytesPerSecond();
+      readSizeHistogram = s.getReadSizeHistogram();
+      controlCommands = s.getControlCommands();
+      controlAverageMicros = s.getControlAverageMicros();
+      controlMaxMicros = s.getControlMaxMicros();
+    }
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("rx %d bytes %d ops %dms blocked %.0f B/s, ", rxBytes, rxOps, rxBlockedMillis, rxBytesPerSecond));
+      sb.append(String.format("tx %d bytes %d ops %dms blocked %.0f B/s, ", txBytes, txOps, txBlockedMillis, txBytesPerSecond));
+      sb.append(String.format("ctrl %d cmds avg %.0fus max %dus, reads", controlCommands, controlAverageMicros, controlMaxMicros));
+      for (int i = 0; i < readSizeHistogram.length; i++) {
+        if (readSizeHistogram[i] > 0) {
+          sb.append(' ').append(i == 0 ? 0 : (1 << (i - 1))).append(':').append(readSizeHistogram[i]);
+        }
+      }
+      return sb.toString();
+    }
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  static int bucket(int n) {
+    return n <= 0 ? 0 : Math.min(HISTOGRAM_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(n));
+  }
+
+  void recordRead(int n, long t0, long t1) {
+    rx.record(n, t0, t1);
+    readSizes[bucket(n)].increment();
+  }
+
+  void recordWrite(int n, long t0, long t1) {
+    tx.record(n, t0, t1);
+  }
+
+  synchronized void recordControl(long nanos) {
+    ctrlCount++;
+    ctrlNanos += nanos;
+    ctrlMaxNanos = Math.max(ctrlMaxNanos, nanos);
+  }
+
+  public long getRxBytes() {
+    return rx.bytes.sum();
+  }
+
+  public long getRxOps() {
+    return rx.ops.sum();
+  }
+
+  public long getRxBlockedMillis() {
+    return rx.blockedNanos.sum() / 1000000L;
+  }
+
+  public double getRxBytesPerSecond() {
+    return rx.rate();
+  }
+
+  public long getTxBytes() {
+    return tx.bytes.sum();
+  }
+
+  public long getTxOps() {
+    return tx.ops.sum();
+  }
+
+  public long getTxBlockedMillis() {
+    return tx.blockedNanos.sum() / 1000000L;
+  }
+
+  public double getTxBytesPerSecond() {
+    return tx.rate();
+  }
+
+  public long[] getReadSizeHistogram() {
+    long[] h = new long[readSizes.length];
+    for (int i = 0; i < h.length; i++) {
+      h[i] = readSizes[i].sum();
+    }
+    return h;
+  }
+
+  public synchronized long getControlCommands() {
+    return ctrlCount;
+  }
+
+  public synchronized double getControlAverageMicros() {
+    return ctrlCount == 0 ? 0 : ctrlNanos / 1000.0 / ctrlCount;
+  }
+
+  public synchronized long getControlMaxMicros() {
+    return ctrlMaxNanos / 1000;
+  }
+
+  public void reset() {
+    rx.reset();
+    tx.reset();
+    for (int i = 0; i < readSizes.length; i++) {
+      readSizes[i].reset();
+    }
+    synchronized (this) {
+      ctrlCount = ctrlNanos = ctrlMaxNanos = 0;
+    }
+  }
+
+  /**
+   * Registers this as an MXBean named after given port.
+   */
+  synchronized void register(String portName) {
+    unregister();
+    try {
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = new ObjectName("com.pelleplutt.util.io:type=PortStats,name=" + ObjectName.quote(portName));
+      if (!mbs.isRegistered(on)) {
+        mbs.registerMBean(this, on);
+        objectName = on;
+      }
+    } catch (Exception e) {
+      Log.println("could not register stats for " + portName + ": " + e.getMessage());
+    }
+  }
+
+  synchronized void unregister() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (Exception ignore) {
+      }
+      objectName = null;
+    }
+  }
+
+  InputStream wrap(final InputStream in) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        long t0 = System.nanoTime();
+        int b = in.read();
+        recordRead(b < 0 ? 0 : 1, t0, System.nanoTime());
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        long t0 = System.nanoTime();
+        int n = in.read(b, off, len);
+        recordRead(n, t0, System.nanoTime());
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        return in.skip(n);
+      }
+
+      @Override
+      public int available() throws IOException {
+        return in.available();
+      }
+
+      @Override
+      public void close() throws IOException {
+        in.close();
+      }
+    };
+  }
+
+  OutputStream wrap(final OutputStream out) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        long t0 = System.nanoTime();
+        out.write(b);
+        recordWrite(1, t0, System.nanoTime());
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        long t0 = System.nanoTime();
+        out.write(b, off, len);
+        recordWrite(len, t0, System.nanoTime());
+      }
+
+      @Override
+      public void flush() throws IOException {
+        out.flush();
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.close();
+      }
+    };
+  }
+}
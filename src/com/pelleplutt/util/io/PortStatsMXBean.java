@@ -0,0 +1,37 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+/**
+ * JMX view of PortStats.
+ *
+ * @author petera
+ */
+public interface PortStatsMXBean {
+  long getRxBytes();
+  long getRxOps();
+  long getRxBlockedMillis();
+  double getRxBytesPerSecond();
+  long getTxBytes();
+  long getTxOps();
+  long getTxBlockedMillis();
+  double getTxBytesPerSecond();
+  long[] getReadSizeHistogram();
+  long getControlCommands();
+  double getControlAverageMicros();
+  long getControlMaxMicros();
+  void reset();
+}
@@ -16,6 +16,7 @@
 package com.pelleplutt.util.io;
 
 import java.io.IOException;
+import java.nio.channels.ByteChannel;
 
 import com.pelleplutt.util.Log;
 
@@ -44,12 +45,16 @@ public class PyPortConnector extends PortConnector {
 	public void doConnect(Port portSetting) throws Exception {
     Log.println("connect " + portSetting.portName);
     if (uartSocketServer == null) {
+      PySerialPortUARTSocket pyUartSocket = new PySerialPortUARTSocket();
+      pyUartSocket.profile = portSetting.profile;
+      pyUartSocket.stats = stats;
       uartSocketServer = (PySerialPortUARTSocket)UARTSocket.createServer(
-		    portSetting.portName, true, new PySerialPortUARTSocket());
+		    portSetting.portName, true, pyUartSocket);
       Log.println("new server instance " + uartSocketServer);
     } else {
       Log.println("have server instance " + uartSocketServer);
     }
+    uartSocketServer.stats = stats;
    
 		configure(portSetting);
 		setInputStream(uartSocketServer.openInputStream());
@@ -80,6 +85,12 @@ public class PyPortConnector extends PortConnector {
     uartSocketServer.dispose();
   }
 
+	@Override
+	public ByteChannel getChannel() {
+		PySerialPortUARTSocket s = uartSocketServer;
+		return s == null ? null : s.getDataChannel();
+	}
+
 	@Override
 	protected void doSetTimeout(long timeout) throws IOException {
 		if (uartSocketServer != null) {
@@ -148,6 +159,7 @@ public class PyPortConnector extends PortConnector {
 			parity = UARTSocket.PARITY_NONE;
 			break;
 		}
+		uartSocketServer.profile = portSetting.profile;
 		uartSocketServer.configure(baud, databits, parity, stopbits, portSetting.xonxoff, portSetting.rtscts, portSetting.dsrdtr,
 				timeout != 0 ? (timeout + 1000) : 0);
 	}
@@ -31,7 +31,15 @@ public class PySerialPortUARTSocket extends UARTSocket {
   public static final String PROP_PATH_BIN = "portconnector.python.bin";
   public static final String PROP_PATH_PYTHON3 = "portconnector.python.python3";
 	
-	public static final int VERSION = 0x00010000;
+	public static final int VERSION = 0x00010004;
+	
+	/**
+	 * Ethernet and serial receive sizes passed to the server per profile,
+	 * indexed by Port.PROFILE_*. The server never waits to fill these, it
+	 * reads what is available, so latency is only affected by the burst
+	 * gathering of the throughput profile.
+	 */
+	static final int[] RECV_SIZES = { 4096, 1024, 64 * 1024 };
 	
 	protected PySerialPortUARTSocket() {
 	}
@@ -48,6 +56,18 @@ public class PySerialPortUARTSocket extends UARTSocket {
   public boolean supportsDSRDTR() {
     return true;
   }
+  @Override
+  public boolean supportsProfile() {
+    return true;
+  }
+  @Override
+  public boolean supportsSharedControl() {
+    return true;
+  }
+  @Override
+  public boolean supportsUnixSocket() {
+    return !System.getProperty("os.name").contains("Windows");
+  }
 
   @Override
 	String preprocessPortName(String portname) {
@@ -110,7 +130,11 @@ public class PySerialPortUARTSocket extends UARTSocket {
 	  } else {
 	    pythonBin += " ";
 	  }
-    return pythonBin + getBinFile().getAbsolutePath() + " " + serverPort;
+    String unixPath = getUnixSocketPath("localhost", serverPort);
+    int recvSize = RECV_SIZES[profile >= 0 && profile < RECV_SIZES.length ? profile : Port.PROFILE_DEFAULT];
+    return pythonBin + getBinFile().getAbsolutePath() + 
+        " -e " + recvSize + " -s " + recvSize +
+        (unixPath != null ? " -u " + unixPath : "") + " " + serverPort;
   }
 
   @Override
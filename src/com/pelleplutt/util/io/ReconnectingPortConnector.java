@@ -0,0 +1,426 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ByteChannel;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * Port connector that survives the port going away, e.g. when a USB serial
+ * adapter resets. Wraps another connector, and would a read or write on it
+ * fail or hit end of stream, the port is reconnected in background with
+ * exponential backoff using the last port configuration and timeout.
+ * <p>
+ * The streams of this connector stay the same over reconnections. Reads and
+ * writes during an outage block until the port is back, or throw
+ * SocketTimeoutException if a timeout is set and elapses first. Data in
+ * flight when the port is lost is lost. Streams only end when disconnect is
+ * called.
+ *
+ * @author petera
+ */
+public class ReconnectingPortConnector extends PortConnector {
+  public static final long DEFAULT_BACKOFF_MIN = 100;
+  public static final long DEFAULT_BACKOFF_MAX = 10000;
+
+  final PortConnector delegate;
+  final Object lock = new Object();
+  long backoffMin = DEFAULT_BACKOFF_MIN;
+  long backoffMax = DEFAULT_BACKOFF_MAX;
+  Port portSetting;
+  // below guarded by lock
+  boolean active;
+  boolean connected;
+  int generation;
+  InputStream in;
+  OutputStream out;
+  Thread reconnector;
+  int reconnects;
+
+  /**
+   * Creates a reconnecting connector around given one. Statistics are kept
+   * by this connector only, as its streams outlive those of the delegate.
+   */
+  public ReconnectingPortConnector(PortConnector delegate) {
+    this.delegate = delegate;
+    delegate.setStatsEnabled(false);
+  }
+
+  /**
+   * Sets delay before first reconnection attempt, doubled for each failed
+   * attempt up to given max.
+   */
+  public void setBackoff(long min, long max) {
+    backoffMin = min;
+    backoffMax = max;
+  }
+
+  /**
+   * Returns whether the port is connected, as opposed to being reconnected.
+   */
+  public boolean isConnected() {
+    synchronized (lock) {
+      return connected;
+    }
+  }
+
+  /**
+   * Returns number of successful reconnections.
+   */
+  public int getReconnects() {
+    synchronized (lock) {
+      return reconnects;
+    }
+  }
+
+  @Override
+  public String[] getDevices() {
+    return delegate.getDevices();
+  }
+
+  @Override
+  protected void doConnect(Port portSetting) throws Exception {
+    this.portSetting = portSetting;
+    delegate.connect(portSetting);
+    synchronized (lock) {
+      active = true;
+      spliceIn();
+    }
+    setInputStream(new SplicedInputStream());
+    setOutputStream(new SplicedOutputStream());
+  }
+
+  @Override
+  protected void doDisconnect() throws IOException {
+    synchronized (lock) {
+      active = false;
+      connected = false;
+      if (reconnector != null) {
+        reconnector.interrupt();
+        reconnector = null;
+      }
+      lock.notifyAll();
+    }
+    delegate.disconnect();
+  }
+
+  /**
+   * Stops reconnecting and disposes the delegate.
+   */
+  @Override
+  public void dispose() {
+    boolean wasActive;
+    synchronized (lock) {
+      wasActive = active;
+    }
+    if (wasActive) {
+      disconnectSilently();
+    }
+    delegate.dispose();
+  }
+
+  /**
+   * Returns the channel of the current delegate connection, or null while
+   * reconnecting. A new channel is used after each reconnection.
+   */
+  @Override
+  public ByteChannel getChannel() {
+    synchronized (lock) {
+      return connected ? delegate.getChannel() : null;
+    }
+  }
+
+  @Override
+  protected void doSetTimeout(long timeout) throws IOException {
+    if (isConnected()) {
+      delegate.setTimeout(timeout);
+    }
+  }
+
+  @Override
+  protected void doConfigure(Port portSetting) throws IOException {
+    this.portSetting = portSetting;
+    delegate.configure(portSetting);
+  }
+
+  /**
+   * Takes streams of delegate into use. Called with lock held.
+   */
+  void spliceIn() {
+    in = delegate.getInputStream();
+    out = delegate.getOutputStream();
+    generation++;
+    connected = true;
+    lock.notifyAll();
+  }
+
+  /**
+   * Called when streams of given generation failed. Starts reconnecting,
+   * unless someone else already did.
+   */
+  void lost(int gen, Throwable cause) {
+    synchronized (lock) {
+      if (!active || !connected || gen != generation) {
+        return;
+      }
+      Log.println(portSetting.portName + " lost: " + (cause == null ? "end of stream" : cause.getMessage()));
+      connected = false;
+      reconnector = new Thread(new Runnable() {
+        public void run() {
+          reconnect();
+        }
+      }, "reconnect-" + portSetting.portName);
+      reconnector.setDaemon(true);
+      reconnector.start();
+    }
+  }
+
+  void reconnect() {
+    long delay = backoffMin;
+    int attempt = 0;
+    delegate.disconnectSilently();
+    while (true) {
+      synchronized (lock) {
+        if (!active) {
+          return;
+        }
+        try {
+          lock.wait(delay);
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (!active) {
+          return;
+        }
+      }
+      attempt++;
+      try {
+        delegate.connect(portSetting);
+        if (timeout > 0) {
+          delegate.setTimeout(timeout);
+        }
+        synchronized (lock) {
+          if (!active) {
+            delegate.disconnectSilently();
+            return;
+          }
+          spliceIn();
+          reconnects++;
+          reconnector = null;
+        }
+        Log.println(portSetting.portName + " reconnected after " + attempt + " attempts");
+        return;
+      } catch (Throwable t) {
+        Log.println(portSetting.portName + " reconnect attempt " + attempt + " failed: " + t.getMessage());
+        delegate.disconnectSilently();
+        delay = Math.min(delay * 2, backoffMax);
+      }
+    }
+  }
+
+  /**
+   * Waits until connected, or timeout.
+   * @return generation of current streams, or -1 if disconnected
+   */
+  int awaitConnected() throws IOException {
+    synchronized (lock) {
+      long tmo = timeout;
+      long deadline = System.currentTimeMillis() + tmo;
+      while (active && !connected) {
+        long left = deadline - System.currentTimeMillis();
+        if (tmo > 0 && left <= 0) {
+          throw new SocketTimeoutException("Timed out, reconnecting " + portSetting.portName);
+        }
+        try {
+          lock.wait(tmo > 0 ? left : 0);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+      }
+      return active ? generation : -1;
+    }
+  }
+
+  @Override
+  public void setRTSDTR(boolean rtshigh, boolean dtrhigh) throws IOException {
+    delegate.setRTSDTR(rtshigh, dtrhigh);
+  }
+
+  @Override
+  public void setRTS(boolean hi) throws IOException {
+    delegate.setRTS(hi);
+  }
+
+  @Override
+  public void setDTR(boolean hi) throws IOException {
+    delegate.setDTR(hi);
+  }
+
+  @Override
+  public int getCTS() throws IOException {
+    return delegate.getCTS();
+  }
+
+  @Override
+  public int getDSR() throws IOException {
+    return delegate.getDSR();
+  }
+
+  @Override
+  public int getRI() throws IOException {
+    return delegate.getRI();
+  }
+
+  @Override
+  public int getCD() throws IOException {
+    return delegate.getCD();
+  }
+
+  class SplicedInputStream extends InputStream {
+    final byte[] cbuf = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      int n = read(cbuf, 0, 1);
+      return n == 1 ? (cbuf[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        int gen = awaitConnected();
+        if (gen < 0) {
+          return -1;
+        }
+        InputStream cur;
+        synchronized (lock) {
+          cur = in;
+        }
+        Throwable cause = null;
+        try {
+          int n = cur.read(b, off, len);
+          if (n >= 0) {
+            return n;
+          }
+        } catch (InterruptedIOException e) {
+          throw e;
+        } catch (IOException e) {
+          cause = e;
+        }
+        lost(gen, cause);
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      InputStream cur;
+      synchronized (lock) {
+        cur = connected ? in : null;
+      }
+      try {
+        return cur == null ? 0 : cur.available();
+      } catch (IOException e) {
+        return 0;
+      }
+    }
+
+    /**
+     * Closes current underlying stream only, which makes a blocked read fail
+     * and the port reconnect. Streams end on disconnect.
+     */
+    @Override
+    public void close() throws IOException {
+      InputStream cur;
+      synchronized (lock) {
+        cur = in;
+      }
+      if (cur != null) {
+        cur.close();
+      }
+    }
+  }
+
+  class SplicedOutputStream extends OutputStream {
+    final byte[] cbuf = new byte[1];
+
+    @Override
+    public void write(int b) throws IOException {
+      cbuf[0] = (byte)b;
+      write(cbuf, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (true) {
+        int gen = awaitConnected();
+        if (gen < 0) {
+          throw new IOException("Port closed");
+        }
+        OutputStream cur;
+        synchronized (lock) {
+          cur = out;
+        }
+        try {
+          cur.write(b, off, len);
+          return;
+        } catch (InterruptedIOException e) {
+          throw e;
+        } catch (IOException e) {
+          lost(gen, e);
+        }
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      int gen = awaitConnected();
+      if (gen < 0) {
+        return;
+      }
+      OutputStream cur;
+      synchronized (lock) {
+        cur = out;
+      }
+      try {
+        cur.flush();
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        lost(gen, e);
+      }
+    }
+
+    /**
+     * Closes current underlying stream only, see SplicedInputStream.close.
+     */
+    @Override
+    public void close() throws IOException {
+      OutputStream cur;
+      synchronized (lock) {
+        cur = out;
+      }
+      if (cur != null) {
+        cur.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+*/
+package com.pelleplutt.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * A stream connection to a uartsocket server. Either a plain TCP socket, or
+ * a unix domain socket when talking to a server on the local host.
+ *
+ * @author petera
+ */
+abstract class ServerLink {
+  /** Socket buffer size used for Port.PROFILE_THROUGHPUT */
+  static final int THROUGHPUT_BUFFER_SIZE = 256 * 1024;
+
+  /**
+   * Connects to given server. If a unix domain socket path is given, this is
+   * tried first. Would that fail, TCP is used.
+   * @param server host name
+   * @param serverPort TCP port
+   * @param unixPath path to unix domain socket, or null
+   * @param profile one of the Port.PROFILE_* constants
+   * @return the link
+   * @throws IOException
+   */
+  static ServerLink connect(String server, int serverPort, String unixPath, int profile) throws IOException {
+    if (unixPath != null) {
+      try {
+        ServerLink link = new UnixLink(unixPath);
+        link.applyProfile(profile);
+        return link;
+      } catch (IOException e) {
+        Log.println("unix socket " + unixPath + " unavailable, using tcp: " + e.getMessage());
+      }
+    }
+    return new TcpLink(server, serverPort, profile);
+  }
+
+  abstract InputStream getInputStream() throws IOException;
+  abstract OutputStream getOutputStream() throws IOException;
+  abstract void setSoTimeout(int timeout) throws IOException;
+  /**
+   * Returns the channel of this link. The TCP link is blocking, the unix
+   * domain link non-blocking.
+   */
+  abstract SocketChannel getChannel();
+  /**
+   * Sets socket options according to given Port.PROFILE_* constant.
+   */
+  abstract void applyProfile(int profile) throws IOException;
+  abstract void close() throws IOException;
+
+  /**
+   * TCP link. Opened as a channel, so it is available to getChannel, while
+   * the socket streams are used as before. Unlike with a plain socket,
+   * interrupting a thread blocked on the streams closes the link.
+   */
+  static class TcpLink extends ServerLink {
+    final SocketChannel channel;
+    final Socket socket;
+
+    TcpLink(String server, int serverPort, int profile) throws IOException {
+      channel = SocketChannel.open();
+      socket = channel.socket();
+      // receive buffer must be set before connecting to affect window scaling
+      applyProfile(profile);
+      socket.connect(new InetSocketAddress(server, serverPort));
+    }
+
+    @Override
+    InputStream getInputStream() throws IOException {
+      return socket.getInputStream();
+    }
+
+    @Override
+    OutputStream getOutputStream() throws IOException {
+      return socket.getOutputStream();
+    }
+
+    @Override
+    void setSoTimeout(int timeout) throws IOException {
+      socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    SocketChannel getChannel() {
+      return channel;
+    }
+
+    @Override
+    void applyProfile(int profile) throws IOException {
+      switch (profile) {
+      case Port.PROFILE_LATENCY:
+        socket.setTcpNoDelay(true);
+        break;
+      case Port.PROFILE_THROUGHPUT:
+        socket.setTcpNoDelay(false);
+        socket.setSendBufferSize(THROUGHPUT_BUFFER_SIZE);
+        socket.setReceiveBufferSize(THROUGHPUT_BUFFER_SIZE);
+        break;
+      }
+    }
+
+    @Override
+    void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  /**
+   * Unix domain socket link. The channel is non-blocking so reads can honour
+   * the timeout, reads and writes have a selector each as they normally are
+   * called from different threads.
+   */
+  static class UnixLink extends ServerLink {
+    final SocketChannel channel;
+    final Selector rdSelector;
+    final Selector wrSelector;
+    final InputStream in;
+    final OutputStream out;
+    volatile int timeout;
+
+    UnixLink(String path) throws IOException {
+      channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+      channel.configureBlocking(false);
+      rdSelector = Selector.open();
+      wrSelector = Selector.open();
+      channel.register(rdSelector, SelectionKey.OP_READ);
+      channel.register(wrSelector, SelectionKey.OP_WRITE);
+      in = new ChannelInputStream();
+      out = new ChannelOutputStream();
+    }
+
+    int read(ByteBuffer bb) throws IOException {
+      try {
+        int n;
+        while ((n = channel.read(bb)) == 0) {
+          int tmo = timeout;
+          int sel = rdSelector.select(tmo);
+          rdSelector.selectedKeys().clear();
+          if (!channel.isOpen()) {
+            throw new SocketException("Socket closed");
+          }
+          if (sel == 0) {
+            // select returns at once when interrupted, would spin forever
+            if (Thread.interrupted()) {
+              throw new InterruptedIOException("Read interrupted");
+            }
+            if (tmo > 0) {
+              throw new SocketTimeoutException("Read timed out");
+            }
+          }
+        }
+        return n;
+      } catch (ClosedSelectorException cse) {
+        throw new SocketException("Socket closed");
+      }
+    }
+
+    void write(ByteBuffer bb) throws IOException {
+      try {
+        while (bb.hasRemaining()) {
+          if (channel.write(bb) == 0) {
+            int sel = wrSelector.select();
+            wrSelector.selectedKeys().clear();
+            if (!channel.isOpen()) {
+              throw new SocketException("Socket closed");
+            }
+            if (sel == 0 && Thread.interrupted()) {
+              throw new InterruptedIOException("Write interrupted");
+            }
+          }
+        }
+      } catch (ClosedSelectorException cse) {
+        throw new SocketException("Socket closed");
+      }
+    }
+
+    @Override
+    InputStream getInputStream() throws IOException {
+      return in;
+    }
+
+    @Override
+    OutputStream getOutputStream() throws IOException {
+      return out;
+    }
+
+    @Override
+    void setSoTimeout(int timeout) throws IOException {
+      this.timeout = timeout;
+    }
+
+    @Override
+    SocketChannel getChannel() {
+      return channel;
+    }
+
+    @Override
+    void applyProfile(int profile) throws IOException {
+      // no nagle on unix domain sockets, only buffers to tune
+      if (profile == Port.PROFILE_THROUGHPUT) {
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, THROUGHPUT_BUFFER_SIZE);
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, THROUGHPUT_BUFFER_SIZE);
+      }
+    }
+
+    @Override
+    void close() throws IOException {
+      channel.close();
+      rdSelector.close();
+      wrSelector.close();
+    }
+
+    class ChannelInputStream extends InputStream {
+      final byte[] cbuf = new byte[1];
+
+      @Override
+      public int read() throws IOException {
+        int n = read(cbuf, 0, 1);
+        return n == 1 ? (cbuf[0] & 0xff) : -1;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        return UnixLink.this.read(ByteBuffer.wrap(b, off, len));
+      }
+
+      @Override
+      public void close() throws IOException {
+        UnixLink.this.close();
+      }
+    }
+
+    class ChannelOutputStream extends OutputStream {
+      final byte[] cbuf = new byte[1];
+
+      @Override
+      public void write(int b) throws IOException {
+        cbuf[0] = (byte)b;
+        write(cbuf, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        UnixLink.this.write(ByteBuffer.wrap(b, off, len));
+      }
+
+      @Override
+      public void close() throws IOException {
+        UnixLink.this.close();
+      }
+    }
+  }
+}
@@ -16,9 +16,13 @@
 package com.pelleplutt.util.io;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
 
 public class SocketPortConnector extends PortConnector {
+	SocketChannel channel;
 	Socket socket;
 	
 	public SocketPortConnector() {
@@ -29,7 +33,21 @@ public class SocketPortConnector extends PortConnector {
 		String port = portSetting.portName;
 		String targetHost = port.substring(0, port.indexOf(':'));
 		String targetPort = port.substring(port.indexOf(':') + 1, port.length());
-		Socket socket = new Socket(targetHost, Integer.parseInt(targetPort));
+		// opened as channel so getChannel is supported, streams work as before
+		// except that an interrupt during blocking I/O closes the socket
+		SocketChannel channel = SocketChannel.open();
+		Socket socket = channel.socket();
+		switch (portSetting.profile) {
+		case Port.PROFILE_LATENCY:
+			socket.setTcpNoDelay(true);
+			break;
+		case Port.PROFILE_THROUGHPUT:
+			socket.setSendBufferSize(ServerLink.THROUGHPUT_BUFFER_SIZE);
+			socket.setReceiveBufferSize(ServerLink.THROUGHPUT_BUFFER_SIZE);
+			break;
+		}
+		socket.connect(new InetSocketAddress(targetHost, Integer.parseInt(targetPort)));
+		this.channel = channel;
 		this.socket = socket;
 		socket.setSoTimeout(0);
 		setInputStream(socket.getInputStream());
@@ -47,6 +65,11 @@ public class SocketPortConnector extends PortConnector {
 		socket.setSoTimeout((int)timeout);
 	}
 
+	@Override
+	public ByteChannel getChannel() {
+		return channel;
+	}
+
 	@Override
 	public String[] getDevices() {
 		String[] devices = {"localhost:5000"};
@@ -0,0 +1,240 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * Hashed timer wheel shared by all port watchdogs. One daemon thread serves
+ * any number of timeouts.
+ * <p>
+ * Timeouts are intrusive and reusable, so arming and disarming neither
+ * allocates nor locks. Disarming is a single volatile write. Arming writes
+ * the new deadline and only hands the timeout over to the wheel thread if
+ * it is not already in the wheel for an earlier deadline. The wheel thread
+ * owns the buckets, and when a timeout comes up it either fires it, moves it
+ * to the bucket of its current deadline, or drops it if disarmed. Thus a
+ * port doing back to back I/O normally costs the wheel one visit per
+ * watchdog period, not one per call.
+ *
+ * @author petera
+ */
+final class TimerWheel implements Runnable {
+  static final long TICK_NS = 10 * 1000 * 1000L;
+  static final int SLOTS = 512;
+  static final int MASK = SLOTS - 1;
+
+  static final AtomicLongFieldUpdater<Timeout> DEADLINE =
+      AtomicLongFieldUpdater.newUpdater(Timeout.class, "deadline");
+  static final AtomicIntegerFieldUpdater<Timeout> QUEUED =
+      AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "queued");
+  static final AtomicReferenceFieldUpdater<TimerWheel, Timeout> PENDING =
+      AtomicReferenceFieldUpdater.newUpdater(TimerWheel.class, Timeout.class, "pending");
+
+  final Timeout[] slots = new Timeout[SLOTS];
+  final long start = System.nanoTime();
+  final Thread thread;
+  volatile Timeout pending;
+  volatile boolean idle;
+  // below only touched by wheel thread
+  long tick;
+  int count;
+
+  static class Holder {
+    static final TimerWheel WHEEL = new TimerWheel();
+  }
+
+  /**
+   * Returns the wheel, starting its thread on first call.
+   */
+  static TimerWheel get() {
+    return Holder.WHEEL;
+  }
+
+  TimerWheel() {
+    thread = new Thread(this, "portwatchdog");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Returns nanoseconds since the wheel was created, never less than one.
+   */
+  long now() {
+    return System.nanoTime() - start + 1;
+  }
+
+  /**
+   * Arms given timeout to expire in given number of nanoseconds. Rearming an
+   * armed timeout replaces its deadline. May be called from any thread, but
+   * a timeout must only be armed from one thread at a time.
+   */
+  void arm(Timeout t, long nanos) {
+    long d = now() + nanos;
+    t.deadline = d;
+    long s = t.scheduled;
+    if (s == 0 || d < s) {
+      if (QUEUED.compareAndSet(t, 0, 1)) {
+        Timeout h;
+        do {
+          h = pending;
+          t.pendingNext = h;
+        } while (!PENDING.compareAndSet(this, h, t));
+        if (idle) {
+          LockSupport.unpark(thread);
+        }
+      }
+    }
+  }
+
+  /**
+   * Disarms given timeout.
+   */
+  static void disarm(Timeout t) {
+    t.deadline = 0;
+  }
+
+  public void run() {
+    tick = now() / TICK_NS;
+    while (true) {
+      Timeout t = PENDING.getAndSet(this, null);
+      long now = now();
+      while (t != null) {
+        Timeout n = t.pendingNext;
+        t.pendingNext = null;
+        t.queued = 0;
+        unlink(t);
+        reschedule(t, now);
+        t = n;
+      }
+      long nowTick = now / TICK_NS;
+      if (count == 0) {
+        tick = nowTick;
+      }
+      while (tick < nowTick) {
+        tick++;
+        expire(tick, now);
+      }
+      if (count == 0) {
+        idle = true;
+        if (pending == null) {
+          LockSupport.park(this);
+        }
+        idle = false;
+      } else {
+        LockSupport.parkNanos(this, (tick + 1) * TICK_NS - now());
+      }
+    }
+  }
+
+  void expire(long tick, long now) {
+    Timeout t = slots[(int)(tick & MASK)];
+    while (t != null) {
+      Timeout n = t.next;
+      if (t.tick <= tick) {
+        unlink(t);
+        reschedule(t, now);
+      }
+      t = n;
+    }
+  }
+
+  /**
+   * Puts given timeout in the bucket of its deadline, or fires or drops it.
+   * Deadline is reread after clearing scheduled, as an arm racing with this
+   * might otherwise have seen an old scheduled deadline and not requeued.
+   */
+  void reschedule(Timeout t, long now) {
+    while (true) {
+      long d = t.deadline;
+      if (d > now) {
+        insert(t, d);
+        return;
+      }
+      boolean fire = d != 0 && DEADLINE.compareAndSet(t, d, 0);
+      if (d != 0 && !fire) {
+        continue;
+      }
+      t.scheduled = 0;
+      if (fire) {
+        try {
+          t.expired();
+        } catch (Throwable e) {
+          Log.printStackTrace(e);
+        }
+      }
+      if (t.deadline == 0) {
+        return;
+      }
+    }
+  }
+
+  void insert(Timeout t, long d) {
+    long tk = Math.max(tick + 1, (d + TICK_NS - 1) / TICK_NS);
+    int ix = (int)(tk & MASK);
+    t.tick = tk;
+    t.prev = null;
+    t.next = slots[ix];
+    if (t.next != null) {
+      t.next.prev = t;
+    }
+    slots[ix] = t;
+    t.inWheel = true;
+    t.scheduled = d;
+    count++;
+  }
+
+  void unlink(Timeout t) {
+    if (!t.inWheel) {
+      return;
+    }
+    if (t.prev != null) {
+      t.prev.next = t.next;
+    } else {
+      slots[(int)(t.tick & MASK)] = t.next;
+    }
+    if (t.next != null) {
+      t.next.prev = t.prev;
+    }
+    t.prev = t.next = null;
+    t.inWheel = false;
+    count--;
+  }
+
+  /**
+   * A reusable timeout. Subclasses implement what happens on expiry, which
+   * is called from the wheel thread and should not block.
+   */
+  static abstract class Timeout {
+    /** nanos since wheel start, 0 when disarmed */
+    volatile long deadline;
+    /** deadline the wheel holds this timeout for, 0 if not in wheel */
+    volatile long scheduled;
+    volatile int queued;
+    Timeout pendingNext;
+    // below only touched by wheel thread
+    Timeout prev, next;
+    long tick;
+    boolean inWheel;
+
+    abstract void expired();
+  }
+}
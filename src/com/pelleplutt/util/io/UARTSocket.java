@@ -25,8 +25,11 @@ import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.pelleplutt.util.AppSystem;
 import com.pelleplutt.util.Log;
@@ -34,7 +37,11 @@ import com.pelleplutt.util.Log;
 public abstract class UARTSocket {
   public static int serverPort_g = 10000 + (int)(Math.random() * 10000);
   static Process serverProcess;
+  /** Port of the running server process, guarded by UARTSocket.class */
+  static int serverProcessPort;
   static boolean shutdownHookAdded = false;
+  /** Milliseconds to wait for a started server to accept connections */
+  static final int SERVER_START_TIMEOUT = 3000;
   
   public static final int PARITY_NONE = 0;
   public static final int PARITY_EVEN = 1;
@@ -46,6 +53,11 @@ public abstract class UARTSocket {
   protected static final int RESULT_UNTIL_OK = -1;
   public static final String PROP_PATH_APPNAME = "portconnector.path";
   public static final String PATH_DEFAULT_APPNAME = ".uartsocket";
+  /** If set to true, local servers are reached over unix domain sockets */
+  public static final String PROP_UNIX_SOCKET = "portconnector.unixsocket";
+  /** If set to true, ports on the same server share one control connection */
+  public static final String PROP_SHARED_CONTROL = "portconnector.sharedcontrol";
+  static final Map<String, SharedControl> sharedControls = new HashMap<String, SharedControl>();
   
   public static int globalStarts = 0;
   public static int globalKills = 0;
@@ -53,7 +65,7 @@ public abstract class UARTSocket {
   String serialport;
   volatile boolean isOpen = false;
   volatile boolean dataClientConnected = false;
-  Socket sCtrl, sData;
+  ServerLink sCtrl, sData;
   InputStream ctrlInStr;
   BufferedReader ctrlIn;
   DataOutputStream ctrlOut;
@@ -64,9 +76,17 @@ public abstract class UARTSocket {
   
   String server = "localhost";
   int serverPort = serverPort_g;
+  int profile = Port.PROFILE_DEFAULT;
+  PortStats stats;
+  /** Shared control connection, or null if this socket has its own */
+  SharedControl shared;
+  /** Prepended to control commands, addressing the slot of a shared control */
+  String ctrlPrefix = "";
   
   public int starts = 0;
   public int kills = 0;
+  /** True if the server is given by host, and not started by us */
+  boolean external;
 
   
   public static UARTSocket createServer(String serialport, boolean connectDataClient, UARTSocket uartsocket) throws IOException {
@@ -82,7 +102,11 @@ public abstract class UARTSocket {
       serialport = serialport.substring(0, portIx);
     }
     int serverNameIx = serialport.indexOf('@');
-    if (serverNameIx > 0) {
+    // a server given by name is already running elsewhere, e.g. found by
+    // UARTSocketDiscovery, and is neither started nor killed from here
+    boolean external = serverNameIx > 0;
+    uartsocket.external = external;
+    if (external) {
       uartsocket.serialport = serialport.substring(0,serverNameIx);
       uartsocket.server = serialport.substring(serverNameIx+1);
     }
@@ -92,20 +116,19 @@ public abstract class UARTSocket {
       int tries = 5;
       while (tries-- > 0 && !ok) {
         try {
-          startServer(uartsocket);
+          if (!external) startServer(uartsocket);
           uartsocket.connectCtrlClient();
           if (connectDataClient) uartsocket.connectDataClient();
           ok = true;
         } catch (ConnectException e) {
-          // port probably busy, server not opened
+          // server not started, or not accepting yet. The server is shared
+          // by all ports, so it is left running, startServer moves on to
+          // another port if it cannot listen at this one
           Log.println("could not connect to port " + uartsocket.server + ":" + uartsocket.serverPort + " : " + e.getMessage());
           try {
             uartsocket.close();
           } catch (Throwable ignore) {}
-          try {
-            killServer(uartsocket.server, uartsocket.serverPort);
-          } catch (Throwable ignore) {}
-          uartsocket.serverPort = serverPort_g++;
+          if (external) throw e;
         }
       }
       uartsocket.isOpen = ok;
@@ -121,14 +144,51 @@ public abstract class UARTSocket {
   }
   
   void connectCtrlClient() throws UnknownHostException, IOException {
+    if (supportsSharedControl() && Boolean.getBoolean(PROP_SHARED_CONTROL)) {
+      connectSharedCtrlClient();
+      return;
+    }
     // open control channel socket
     Log.println("open ctrl client against server " + server + ":" + serverPort);
-    sCtrl = new Socket(server, serverPort);
+    // control channel is request/response, always low latency
+    sCtrl = ServerLink.connect(server, serverPort, getUnixSocketPath(server, serverPort), 
+        Port.PROFILE_LATENCY);
     ctrlInStr = sCtrl.getInputStream();
     ctrlIn = new BufferedReader(new InputStreamReader(ctrlInStr));
     ctrlOut = new DataOutputStream(sCtrl.getOutputStream());
   }
   
+  /**
+   * Uses the shared control connection to the server, opening it if needed,
+   * and gets a slot of it for this port. The slot then acts as an own
+   * control channel would, data channel attaches to the slot.
+   */
+  void connectSharedCtrlClient() throws IOException {
+    shared = SharedControl.acquire(this);
+    sCtrl = shared.link;
+    ctrlInStr = shared.in;
+    ctrlIn = shared.reader;
+    ctrlOut = shared.out;
+    try {
+      String[] res = controlCommand(true, "N", 1);
+      ctrlPrefix = "@ " + Integer.parseInt(res[0]) + " ";
+      Log.println("ctrl slot " + res[0] + " on shared ctrl client " + server + ":" + serverPort);
+    } catch (IOException e) {
+      releaseSharedControl();
+      throw e;
+    }
+  }
+
+  void releaseSharedControl() {
+    SharedControl.release(this);
+    shared = null;
+    ctrlPrefix = "";
+    sCtrl = null;
+    ctrlInStr = null;
+    ctrlIn = null;
+    ctrlOut = null;
+  }
+
   void connectDataClient() throws IOException {
     String[] res;
     Log.println("open data client against server " + server + ":" + serverPort + ", " + serialport);
@@ -140,9 +200,7 @@ public abstract class UARTSocket {
     Log.println("serial " + serialport + " is ctrl client index " + ctrlIndex);
     
     // open data channel socket
-    sData = new Socket(server, serverPort);
-    //sData.setSendBufferSize(128);
-    //sData.setReceiveBufferSize(128);
+    sData = ServerLink.connect(server, serverPort, getUnixSocketPath(server, serverPort), profile);
     dataIn = sData.getInputStream();
     dataOut = sData.getOutputStream();
     dataCIn = new BufferedReader(new InputStreamReader(dataIn));
@@ -157,6 +215,7 @@ public abstract class UARTSocket {
       throws IOException {
     if (!dataClientConnected) connectDataClient();
     sData.setSoTimeout((int)timeout + ((timeout > 0) ? 100 : 0));
+    sData.applyProfile(profile);
     timeout /= 100;
     String command = "U"
       + " B" + baud 
@@ -168,6 +227,7 @@ public abstract class UARTSocket {
     if (supportsXONXOFF()) command += " X" + (xonxoff ? '1' : '0');
     if (supportsRTSCTS()) command += " Y" + (rtscts ? '1' : '0');
     if (supportsDSRDTR()) command += " Z" + (dsrdtr ? '1' : '0');
+    if (supportsProfile()) command += " L" + profile;
     controlCommand(true, command, 0);
   }
   
@@ -214,9 +274,21 @@ public abstract class UARTSocket {
   }
 
   String[] controlCommand(boolean ctrl, String s, int result) throws IOException {
+    SharedControl sc = shared;
+    if (ctrl && sc != null) {
+      // one command at a time on the shared connection
+      synchronized (sc) {
+        return doControlCommand(ctrl, ctrlPrefix + s, result);
+      }
+    }
+    return doControlCommand(ctrl, s, result);
+  }
+
+  String[] doControlCommand(boolean ctrl, String s, int result) throws IOException {
     DataOutputStream out = ctrl ? ctrlOut : dataCOut;
-    out.writeBytes(s);
-    out.write('\n');
+    long t0 = System.nanoTime();
+    // one write, so the command goes out in one segment
+    out.writeBytes(s + '\n');
     out.flush();
     String[] res;
     if (result != RESULT_UNTIL_OK) {
@@ -236,6 +308,9 @@ public abstract class UARTSocket {
       }
       res = (String[])l.toArray(new String[l.size()]);
     }
+    if (stats != null) {
+      stats.recordControl(System.nanoTime() - t0);
+    }
     return res;
   }
   
@@ -256,21 +331,36 @@ public abstract class UARTSocket {
     return dataOut;
   }
 
+  /**
+   * Returns the channel of the data connection, or null if not connected.
+   */
+  public SocketChannel getDataChannel() {
+    return sData == null ? null : sData.getChannel();
+  }
+
   public void close() throws IOException {
     isOpen = false;
-    try {
-      String[] res = controlCommand(true, "I", 1);
-      int ctrlIndex = Integer.parseInt(res[0]);
-      Log.println("closing ctrl client index " + ctrlIndex);
-    } catch (Throwable ignore) {}
-    try {
-      controlCommand(true, "C", 0);
-    } catch (Throwable ignore) {}
+    // without a slot, C would close the shared control for all ports
+    boolean haveCtrl = shared == null || ctrlPrefix.length() > 0;
+    if (haveCtrl) {
+      try {
+        String[] res = controlCommand(true, "I", 1);
+        int ctrlIndex = Integer.parseInt(res[0]);
+        Log.println("closing ctrl client index " + ctrlIndex);
+      } catch (Throwable ignore) {}
+      try {
+        controlCommand(true, "C", 0);
+      } catch (Throwable ignore) {}
+    }
     AppSystem.closeSilently(dataIn);
     AppSystem.closeSilently(dataOut);
-    AppSystem.closeSilently(ctrlInStr);
-    AppSystem.closeSilently(ctrlOut);
-    if (sCtrl != null) sCtrl.close();
+    if (shared != null) {
+      releaseSharedControl();
+    } else {
+      AppSystem.closeSilently(ctrlInStr);
+      AppSystem.closeSilently(ctrlOut);
+      if (sCtrl != null) sCtrl.close();
+    }
     dataClientConnected = false;
     if (sData != null) sData.close();
   }
@@ -280,50 +370,121 @@ public abstract class UARTSocket {
   }
 
   public void dispose() {
+    if (external) {
+      // not ours to kill
+      return;
+    }
     kills++;
     killServer(this.server, this.serverPort);
   }
   
-  protected static void startServer(UARTSocket uartSocket) {
-    final int serverPort = uartSocket.serverPort;
+  /**
+   * Starts the server process unless running, and returns when it accepts
+   * connections. Synchronized, as ports opened in parallel share the same
+   * server. The port of given socket is set to the port of the server.
+   * Would the server not start at the port, e.g. as it is busy, next global
+   * port is picked for the next try.
+   * @throws ConnectException if the server did not start
+   */
+  protected static synchronized void startServer(UARTSocket uartSocket) throws ConnectException {
     Log.println("uartsocket:" + uartSocket.serialport + "@" + uartSocket.server + ":" + uartSocket.serverPort);
     if (!shutdownHookAdded) {
       Log.println("adding shutdowhook for " + uartSocket.serverPort);
       Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
         public void run() {
-          killServer(serverPort);
+          int port;
+          synchronized (UARTSocket.class) {
+            port = serverProcessPort;
+          }
+          killServer(port);
         }
       }));
       shutdownHookAdded = true;
     }
+    if (serverProcess != null && validateRunningProcess(serverProcess)) {
+      Log.println("server already started");
+      uartSocket.serverPort = serverProcessPort;
+      return;
+    }
+    final int serverPort = uartSocket.serverPort;
     try {
       uartSocket.checkBinary(uartSocket.getBinFile(), 
           uartSocket.getVersionFile(), 
           uartSocket.getVersion());
-      if (serverProcess == null || !validateRunningProcess(serverProcess)) {
-        String cmd = uartSocket.getExecCommand(serverPort);
-        Log.println("starting server at " + serverPort + " (" + cmd + ")");
-        uartSocket.preExec();
-        serverProcess = Runtime.getRuntime().exec(cmd);
-        uartSocket.postExec();
-        validateRunningProcess(serverProcess);
-        Log.println("server start validated " + serverPort + " (" + cmd + ")");
-        globalStarts++;
-        uartSocket.starts++;
-      } else {
-        Log.println("server already started");
+      String cmd = uartSocket.getExecCommand(serverPort);
+      Log.println("starting server at " + serverPort + " (" + cmd + ")");
+      uartSocket.preExec();
+      serverProcess = Runtime.getRuntime().exec(cmd);
+      serverProcessPort = serverPort;
+      uartSocket.postExec();
+      if (!awaitServer(serverProcess, serverPort)) {
+        // our own process, serving no one yet
+        serverProcess.destroy();
+        serverProcess = null;
+        uartSocket.serverPort = serverPort_g++;
+        throw new ConnectException("server did not start at " + serverPort);
       }
+      Log.println("server start validated " + serverPort + " (" + cmd + ")");
+      globalStarts++;
+      uartSocket.starts++;
+    } catch (ConnectException e) {
+      throw e;
     } catch (IOException ignore) {
     } catch (InterruptedException ignore) {
     }
   }
 
+  /**
+   * Waits for given server process to accept connections at given port.
+   * @return false if the process ended or did not accept in time
+   */
+  static boolean awaitServer(Process p, int serverPort) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT;
+    while (validateRunningProcess(p)) {
+      Socket s = null;
+      try {
+        s = new Socket("localhost", serverPort);
+        return true;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() >= deadline) {
+          Log.println("server not accepting at " + serverPort + ": " + e.getMessage());
+          return false;
+        }
+      } finally {
+        if (s != null) {
+          try {
+            s.close();
+          } catch (Throwable ignore) {}
+        }
+      }
+      Thread.sleep(20);
+    }
+    return false;
+  }
+
   protected void preExec() {
   }
   protected void postExec() {
   }
   protected String getExecCommand(int serverPort) {
-    return getBinFile().getAbsolutePath() + " " + serverPort;
+    String unixPath = getUnixSocketPath("localhost", serverPort);
+    return getBinFile().getAbsolutePath() + " " + serverPort + 
+        (unixPath != null ? " " + unixPath : "");
+  }
+
+  /**
+   * Returns the unix domain socket path for a server at given host and port,
+   * or null if unix domain sockets should not be used.
+   */
+  String getUnixSocketPath(String server, int serverPort) {
+    if (!supportsUnixSocket() || !Boolean.getBoolean(PROP_UNIX_SOCKET)) {
+      return null;
+    }
+    if (!server.equals("localhost") && !server.equals("127.0.0.1")) {
+      return null;
+    }
+    return new File(System.getProperty("java.io.tmpdir"), 
+        "uartsocket-" + serverPort + ".sock").getAbsolutePath();
   }
 
   static boolean validateRunningProcess(Process p) {
@@ -342,6 +503,7 @@ public abstract class UARTSocket {
   static void killServer(String server, int serverPort) {
     globalKills++;
     Log.println("server kill @ " + server + ":" + serverPort);
+    SharedControl.drop(server, serverPort);
     Socket sCtrl = null;
     try {
       try {
@@ -385,9 +547,102 @@ public abstract class UARTSocket {
   public boolean supportsDSRDTR() {
     return false;
   }
+  public boolean supportsUnixSocket() {
+    return false;
+  }
+  /**
+   * Returns if server takes a Port.PROFILE_* setting in the configuration
+   * command and tunes its sockets and serial driver accordingly.
+   */
+  public boolean supportsProfile() {
+    return false;
+  }
+  /**
+   * Returns if server can manage many ports from one control connection by
+   * slots, see PROP_SHARED_CONTROL.
+   */
+  public boolean supportsSharedControl() {
+    return false;
+  }
   abstract void checkBinary(File exe, File verFile, int ver) throws IOException, InterruptedException;
 
   abstract File getBinFile();
   abstract File getVersionFile();
   abstract int getVersion();
+
+  /**
+   * A control connection shared by all ports on the same server, each port
+   * commanding its own slot. Reference counted, closed when the last port
+   * using it is closed.
+   */
+  static class SharedControl {
+    final String key;
+    final ServerLink link;
+    final InputStream in;
+    final BufferedReader reader;
+    final DataOutputStream out;
+    int users;
+
+    SharedControl(String key, ServerLink link) throws IOException {
+      this.key = key;
+      this.link = link;
+      in = link.getInputStream();
+      reader = new BufferedReader(new InputStreamReader(in));
+      out = new DataOutputStream(link.getOutputStream());
+    }
+
+    static String key(String server, int serverPort) {
+      return server + ":" + serverPort;
+    }
+
+    static SharedControl acquire(UARTSocket u) throws IOException {
+      String key = key(u.server, u.serverPort);
+      synchronized (sharedControls) {
+        SharedControl sc = sharedControls.get(key);
+        if (sc == null) {
+          Log.println("open shared ctrl client against server " + key);
+          // control channel is request/response, always low latency
+          ServerLink link = ServerLink.connect(u.server, u.serverPort, 
+              u.getUnixSocketPath(u.server, u.serverPort), Port.PROFILE_LATENCY);
+          sc = new SharedControl(key, link);
+          sharedControls.put(key, sc);
+        }
+        sc.users++;
+        return sc;
+      }
+    }
+
+    static void release(UARTSocket u) {
+      SharedControl sc = u.shared;
+      if (sc == null) return;
+      synchronized (sharedControls) {
+        if (--sc.users > 0) return;
+        if (sharedControls.get(sc.key) == sc) {
+          sharedControls.remove(sc.key);
+        }
+      }
+      sc.close();
+    }
+
+    /**
+     * Forgets shared control to given server, e.g. when server is killed.
+     * Ports still using it will fail on next control command.
+     */
+    static void drop(String server, int serverPort) {
+      SharedControl sc;
+      synchronized (sharedControls) {
+        sc = sharedControls.remove(key(server, serverPort));
+      }
+      if (sc != null) sc.close();
+    }
+
+    void close() {
+      Log.println("closing shared ctrl client " + key);
+      AppSystem.closeSilently(in);
+      AppSystem.closeSilently(out);
+      try {
+        link.close();
+      } catch (IOException ignore) {}
+    }
+  }
 }
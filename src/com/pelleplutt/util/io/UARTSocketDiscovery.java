@@ -0,0 +1,376 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.pelleplutt.util.Log;
+
+/**
+ * Finds uartsocket servers on the network, as started by
+ * <code>pyuartsocket.py -b &lt;address&gt; &lt;port&gt;</code>.
+ * <p>
+ * A query is broadcast on the UDP port, and servers reply to the UDP port
+ * above it with their TCP port. As servers delay their replies randomly,
+ * the reply time says nothing about the host. Instead each found server is
+ * probed over TCP, timing an identify command, and its devices are listed.
+ * Found hosts are cached and ranked by round trip time, and a device is
+ * connected via the fastest host exposing it.
+ *
+ * @author petera
+ */
+public class UARTSocketDiscovery {
+  public static final int DEFAULT_PORT = 5001;
+  /** Milliseconds a host is kept after it last replied */
+  public static final long DEFAULT_TTL = 30000;
+  public static final long DEFAULT_DISCOVERY_TIME = 1000;
+  static final String BRDCST_HDR = "uartsocket";
+  static final String BRDCST_QUERY_TAIL = "?";
+  static final String BRDCST_REPLY_TAIL = "!";
+  /** Interval between queries, as datagrams may be lost */
+  static final int QUERY_INTERVAL = 400;
+  static final int PROBE_TIMEOUT = 2000;
+  /** Weight of a new round trip sample */
+  static final double RTT_ALPHA = 0.3;
+
+  final int port;
+  final long ttl;
+  final Map<String, Host> hosts = new HashMap<String, Host>();
+  InetAddress queryAddress;
+  long lastDiscovery;
+
+  /**
+   * A discovered uartsocket server.
+   */
+  public static class Host {
+    public final InetAddress address;
+    public final int port;
+    volatile String version;
+    volatile long rtt = Long.MAX_VALUE;
+    volatile String[] devices = new String[0];
+    volatile long lastSeen;
+
+    Host(InetAddress address, int port) {
+      this.address = address;
+      this.port = port;
+    }
+
+    /**
+     * Returns smoothed round trip time in nanoseconds, or Long.MAX_VALUE if
+     * the host could not be probed.
+     */
+    public long getRoundTripTime() {
+      return rtt;
+    }
+
+    public String[] getDevices() {
+      return devices.clone();
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    /**
+     * Returns the name of given device as known by this host, or null if not
+     * exposed. Matches with or without leading /dev/.
+     */
+    public String getDevice(String device) {
+      for (String d : devices) {
+        if (d.equals(device) || d.equals("/dev/" + device) || device.equals("/dev/" + d)) {
+          return d;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns given device on the url form understood by UARTSocket, e.g.
+     * /dev/ttyUSB4@192.168.0.4:8000
+     */
+    public String getPortName(String device) {
+      return device + "@" + address.getHostAddress() + ":" + port;
+    }
+
+    public String toString() {
+      return address.getHostAddress() + ":" + port +
+          (rtt == Long.MAX_VALUE ? " unreachable" : " " + (rtt / 1000) + "us");
+    }
+  }
+
+  public UARTSocketDiscovery() {
+    this(DEFAULT_PORT, DEFAULT_TTL);
+  }
+
+  /**
+   * @param port the UDP port servers listen for queries on, normally same as
+   *        their TCP port
+   * @param ttl milliseconds a host is kept after it last replied
+   */
+  public UARTSocketDiscovery(int port, long ttl) {
+    this.port = port;
+    this.ttl = ttl;
+  }
+
+  /**
+   * Sets where queries are sent, defaults to 255.255.255.255. Can be a
+   * directed broadcast address to select network, or a unicast address to
+   * query a single host, e.g. 127.0.0.1.
+   */
+  public void setQueryAddress(InetAddress address) {
+    queryAddress = address;
+  }
+
+  /**
+   * Queries the network for given time, probes all servers replying, and
+   * updates the cache.
+   * @param time milliseconds to wait for replies
+   * @return all cached hosts, fastest first
+   */
+  public List<Host> discover(long time) throws IOException {
+    List<Host> found = query(time);
+    for (Host h : found) {
+      probe(h);
+    }
+    synchronized (hosts) {
+      long now = System.currentTimeMillis();
+      lastDiscovery = now;
+      Iterator<Host> i = hosts.values().iterator();
+      while (i.hasNext()) {
+        if (now - i.next().lastSeen > ttl) {
+          i.remove();
+        }
+      }
+    }
+    return getCachedHosts();
+  }
+
+  /**
+   * Returns cached hosts, fastest first. Discovers first if the cache is
+   * empty or older than the time to live.
+   */
+  public List<Host> getHosts() throws IOException {
+    boolean stale;
+    synchronized (hosts) {
+      stale = hosts.isEmpty() || System.currentTimeMillis() - lastDiscovery > ttl;
+    }
+    if (stale) {
+      return discover(DEFAULT_DISCOVERY_TIME);
+    }
+    return getCachedHosts();
+  }
+
+  /**
+   * Returns cached hosts without discovering, fastest first.
+   */
+  public List<Host> getCachedHosts() {
+    List<Host> l;
+    synchronized (hosts) {
+      l = new ArrayList<Host>(hosts.values());
+    }
+    Collections.sort(l, new Comparator<Host>() {
+      public int compare(Host a, Host b) {
+        return Long.compare(a.rtt, b.rtt);
+      }
+    });
+    return l;
+  }
+
+  /**
+   * Returns the fastest reachable host exposing given device, or null.
+   */
+  public Host findHost(String device) throws IOException {
+    for (Host h : getHosts()) {
+      if (h.rtt != Long.MAX_VALUE && h.getDevice(device) != null) {
+        return h;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Connects given device on the fastest host exposing it, using the
+   * connector for this context.
+   * @param device device name, with or without /dev/
+   * @param settings port settings, the port name is ignored
+   * @return connected port connector
+   * @throws IOException if no host exposes the device
+   */
+  public PortConnector connect(String device, Port settings) throws Exception {
+    return connect(device, settings, PortConnector.getPortConnector());
+  }
+
+  /**
+   * Connects given device on the fastest host exposing it, using given
+   * connector. The connector must be one talking to a uartsocket server.
+   * @param device device name, with or without /dev/
+   * @param settings port settings, the port name is ignored
+   * @param pc the connector to connect
+   * @return given connector, connected
+   * @throws IOException if no host exposes the device
+   */
+  public PortConnector connect(String device, Port settings, PortConnector pc) throws Exception {
+    Host h = findHost(device);
+    if (h == null) {
+      throw new IOException("No uartsocket host exposes " + device);
+    }
+    Port p = new Port();
+    p.portName = h.getPortName(h.getDevice(device));
+    p.uiName = settings.uiName;
+    p.baud = settings.baud;
+    p.parity = settings.parity;
+    p.stopbits = settings.stopbits;
+    p.databits = settings.databits;
+    p.xonxoff = settings.xonxoff;
+    p.rtscts = settings.rtscts;
+    p.dsrdtr = settings.dsrdtr;
+    p.profile = settings.profile;
+    Log.println("connecting " + device + " via " + h);
+    pc.connect(p);
+    return pc;
+  }
+
+  /**
+   * Broadcasts queries and collects replies for given time.
+   * @return hosts replying
+   */
+  List<Host> query(long time) throws IOException {
+    List<Host> found = new ArrayList<Host>();
+    DatagramSocket sock = new DatagramSocket(null);
+    try {
+      sock.setReuseAddress(true);
+      sock.setBroadcast(true);
+      sock.bind(new InetSocketAddress(port + 1));
+      InetAddress dst = queryAddress != null ? queryAddress :
+        InetAddress.getByName("255.255.255.255");
+      byte[] q = (BRDCST_HDR + BRDCST_QUERY_TAIL).getBytes("ascii");
+      DatagramPacket qp = new DatagramPacket(q, q.length, dst, port);
+      byte[] buf = new byte[64];
+      long end = System.currentTimeMillis() + time;
+      long nextQuery = 0;
+      long now;
+      while ((now = System.currentTimeMillis()) < end) {
+        if (now >= nextQuery) {
+          sock.send(qp);
+          nextQuery = now + QUERY_INTERVAL;
+        }
+        sock.setSoTimeout((int)Math.max(1, Math.min(nextQuery, end) - now));
+        DatagramPacket rp = new DatagramPacket(buf, buf.length);
+        try {
+          sock.receive(rp);
+        } catch (SocketTimeoutException e) {
+          continue;
+        }
+        Host h = parseReply(rp);
+        if (h != null && !found.contains(h)) {
+          found.add(h);
+        }
+      }
+    } finally {
+      sock.close();
+    }
+    return found;
+  }
+
+  /**
+   * Parses a reply on form uartsocket&lt;version&gt;:&lt;port&gt;! and
+   * returns the cached host, creating it if new, or null if not a reply.
+   */
+  Host parseReply(DatagramPacket rp) {
+    String s = new String(rp.getData(), rp.getOffset(), rp.getLength()).trim();
+    int colon = s.lastIndexOf(':');
+    if (!s.startsWith(BRDCST_HDR) || !s.endsWith(BRDCST_REPLY_TAIL) || colon < 0) {
+      return null;
+    }
+    int tcpPort;
+    try {
+      tcpPort = Integer.parseInt(s.substring(colon + 1, s.length() - 1));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    String key = rp.getAddress().getHostAddress() + ":" + tcpPort;
+    synchronized (hosts) {
+      Host h = hosts.get(key);
+      if (h == null) {
+        h = new Host(rp.getAddress(), tcpPort);
+        hosts.put(key, h);
+        Log.println("found uartsocket " + key);
+      }
+      h.version = s.substring(BRDCST_HDR.length(), colon);
+      h.lastSeen = System.currentTimeMillis();
+      return h;
+    }
+  }
+
+  /**
+   * Measures round trip time of an identify command to given host and
+   * lists its devices. Would it fail, the host is marked unreachable.
+   */
+  public void probe(Host h) {
+    Socket s = new Socket();
+    try {
+      s.setTcpNoDelay(true);
+      s.connect(new InetSocketAddress(h.address, h.port), PROBE_TIMEOUT);
+      s.setSoTimeout(PROBE_TIMEOUT);
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+      OutputStream out = s.getOutputStream();
+      long t0 = System.nanoTime();
+      command(in, out, "I");
+      long sample = System.nanoTime() - t0;
+      List<String> devs = command(in, out, "L");
+      h.devices = devs.toArray(new String[devs.size()]);
+      h.rtt = h.rtt == Long.MAX_VALUE ? sample :
+        (long)(RTT_ALPHA * sample + (1.0 - RTT_ALPHA) * h.rtt);
+    } catch (IOException e) {
+      Log.println("could not probe " + h.address.getHostAddress() + ":" + h.port + ": " + e.getMessage());
+      h.rtt = Long.MAX_VALUE;
+    } finally {
+      try {
+        s.close();
+      } catch (IOException ignore) {}
+    }
+  }
+
+  static List<String> command(BufferedReader in, OutputStream out, String cmd) throws IOException {
+    out.write((cmd + '\n').getBytes());
+    out.flush();
+    List<String> res = new ArrayList<String>();
+    String q;
+    while (!"OK".equals(q = in.readLine())) {
+      if (q == null || q.startsWith("ERROR")) {
+        throw new IOException("Command " + cmd + " failed, read: " + q);
+      }
+      res.add(q);
+    }
+    return res;
+  }
+}
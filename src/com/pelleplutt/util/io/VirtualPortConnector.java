@@ -0,0 +1,412 @@
+/*
+ Copyright (c) 2012, Peter Andersson pelleplutt1976@gmail.com
+
+ Permission to use, copy, modify, and/or distribute this software for any
+ purpose with or without fee is hereby granted, provided that the above
+ copyright notice and this permission notice appear in all copies.
+
+ THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY
+ AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM
+ LOSS OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR
+ OTHER TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR
+ PERFORMANCE OF THIS SOFTWARE.
+ */
+package com.pelleplutt.util.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serial port simulated within the jvm, needing no hardware nor helper
+ * processes. The port name selects what the simulated device does:
+ * <ul>
+ * <li>echo - every byte sent is sent back</li>
+ * <li>script - when received data ends with a trigger, the corresponding
+ * response is sent, see addResponse</li>
+ * <li>random - the device sends random data continuously at full rate</li>
+ * </ul>
+ * Bytes are timed as on a real line according to baud rate, data bits,
+ * parity and stop bits. Writes never block, and would the host not keep up
+ * reading, received bytes are dropped and counted as overruns like in a
+ * real UART. Modem lines are looped back as by a loopback plug, RTS to CTS
+ * and DTR to DSR and CD.
+ * <p>
+ * No threads are involved, all timing is calculated when reading.
+ *
+ * @author petera
+ */
+public class VirtualPortConnector extends PortConnector {
+  public static final String MODE_ECHO = "echo";
+  public static final String MODE_SCRIPT = "script";
+  public static final String MODE_RANDOM = "random";
+  static final int RX_BUFFER_SIZE = 4096;
+  static final int HISTORY_SIZE = 256;
+
+  final Object lock = new Object();
+  final List<byte[][]> script = new ArrayList<byte[][]>();
+  boolean timing = true;
+  String mode;
+  int dataMask;
+  long charNanos;
+  boolean open;
+  // bytes on their way to host, each with the nanotime it is received
+  final byte[] rxData = new byte[RX_BUFFER_SIZE];
+  final long[] rxTime = new long[RX_BUFFER_SIZE];
+  int rxHead;
+  int rxCount;
+  long rxLineFree;
+  long txLineFree;
+  final byte[] history = new byte[HISTORY_SIZE];
+  int historyLen;
+  long randomStart;
+  long randomProduced;
+  long randomState;
+  long overruns;
+  volatile boolean rts, dtr, ri;
+
+  public String[] getDevices() {
+    return new String[] { MODE_ECHO, MODE_RANDOM, MODE_SCRIPT };
+  }
+
+  /**
+   * Adds a scripted response. In script mode, when the received data ends
+   * with trigger, the response is sent.
+   */
+  public void addResponse(byte[] trigger, byte[] response) {
+    synchronized (lock) {
+      script.add(new byte[][] { trigger.clone(), response.clone() });
+    }
+  }
+
+  public void addResponse(String trigger, String response) {
+    addResponse(trigger.getBytes(), response.getBytes());
+  }
+
+  public void clearScript() {
+    synchronized (lock) {
+      script.clear();
+    }
+  }
+
+  /**
+   * Enables or disables emulation of line timing. Without timing, data is
+   * available at once and random mode produces data as fast as it is read.
+   */
+  public void setTiming(boolean timing) {
+    synchronized (lock) {
+      this.timing = timing;
+    }
+  }
+
+  /**
+   * Sets level of the simulated ring indicator.
+   */
+  public void setRI(boolean hi) {
+    ri = hi;
+  }
+
+  /**
+   * Returns number of bytes dropped because the host did not read in time.
+   */
+  public long getOverruns() {
+    synchronized (lock) {
+      return overruns;
+    }
+  }
+
+  @Override
+  protected void doConnect(Port portSetting) throws Exception {
+    synchronized (lock) {
+      mode = portSetting.portName;
+      if (!MODE_SCRIPT.equals(mode) && !MODE_RANDOM.equals(mode)) {
+        mode = MODE_ECHO;
+      }
+      rxHead = rxCount = historyLen = 0;
+      overruns = 0;
+      randomState = portSetting.portName.hashCode() | 1L;
+      open = true;
+    }
+    configure(portSetting);
+    setInputStream(new VirtualInputStream());
+    setOutputStream(new VirtualOutputStream());
+  }
+
+  @Override
+  protected void doDisconnect() throws IOException {
+    synchronized (lock) {
+      open = false;
+      rxCount = 0;
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  protected void doSetTimeout(long timeout) throws IOException {
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  @Override
+  protected void doConfigure(Port portSetting) throws IOException {
+    int bits = 1 + portSetting.databits + portSetting.stopbits
+        + (portSetting.parity == Port.PARITY_NO ? 0 : 1);
+    synchronized (lock) {
+      dataMask = (1 << portSetting.databits) - 1;
+      charNanos = portSetting.baud > 0 ? 1000000000L * bits / portSetting.baud : 0;
+      long now = System.nanoTime();
+      rxLineFree = txLineFree = randomStart = now;
+      randomProduced = 0;
+    }
+  }
+
+  long charNanos() {
+    return timing ? charNanos : 0;
+  }
+
+  /**
+   * Queues a byte from the device, sent when the line is free but not
+   * before given time.
+   */
+  void deviceSend(int b, long notBefore) {
+    long t = Math.max(notBefore, rxLineFree) + charNanos();
+    rxLineFree = t;
+    if (rxCount == RX_BUFFER_SIZE) {
+      overruns++;
+      return;
+    }
+    int ix = (rxHead + rxCount) % RX_BUFFER_SIZE;
+    rxData[ix] = (byte)(b & dataMask);
+    rxTime[ix] = t;
+    rxCount++;
+  }
+
+  /**
+   * Called for each byte the device receives, at given time.
+   */
+  void deviceReceive(int b, long t) {
+    if (MODE_ECHO.equals(mode)) {
+      deviceSend(b, t);
+    } else if (MODE_SCRIPT.equals(mode)) {
+      if (historyLen == HISTORY_SIZE) {
+        System.arraycopy(history, 1, history, 0, HISTORY_SIZE - 1);
+        historyLen--;
+      }
+      history[historyLen++] = (byte)b;
+      for (byte[][] entry : script) {
+        if (endsWith(entry[0])) {
+          for (byte r : entry[1]) {
+            deviceSend(r, t);
+          }
+          historyLen = 0;
+          break;
+        }
+      }
+    }
+  }
+
+  boolean endsWith(byte[] trigger) {
+    int len = trigger.length;
+    if (len == 0 || len > historyLen) {
+      return false;
+    }
+    for (int i = 0; i < len; i++) {
+      if (history[historyLen - len + i] != trigger[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Moves received bytes into given buffer.
+   * @return number of bytes, 0 if none yet
+   */
+  int poll(byte[] b, int off, int len, long now) {
+    if (MODE_RANDOM.equals(mode)) {
+      long cn = charNanos();
+      long avail;
+      if (cn == 0) {
+        avail = len;
+      } else {
+        long sent = (now - randomStart) / cn;
+        avail = sent - randomProduced;
+        if (avail > RX_BUFFER_SIZE) {
+          overruns += avail - RX_BUFFER_SIZE;
+          randomProduced = sent - RX_BUFFER_SIZE;
+          avail = RX_BUFFER_SIZE;
+        }
+      }
+      int n = (int)Math.min(avail, len);
+      long x = randomState;
+      for (int i = 0; i < n; i++) {
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        b[off + i] = (byte)(x & dataMask);
+      }
+      randomState = x;
+      randomProduced += n;
+      return n;
+    }
+    int n = 0;
+    while (n < len && rxCount > 0 && rxTime[rxHead] <= now) {
+      b[off + n++] = rxData[rxHead];
+      rxHead = (rxHead + 1) % RX_BUFFER_SIZE;
+      rxCount--;
+    }
+    return n;
+  }
+
+  /**
+   * Returns nanos until next byte is received, or -1 if nothing is coming.
+   */
+  long untilNext(long now) {
+    if (MODE_RANDOM.equals(mode)) {
+      return Math.max(1, charNanos() - (now - randomStart) % Math.max(1, charNanos()));
+    }
+    return rxCount > 0 ? Math.max(1, rxTime[rxHead] - now) : -1;
+  }
+
+  @Override
+  public void setRTSDTR(boolean rtshigh, boolean dtrhigh) throws IOException {
+    rts = rtshigh;
+    dtr = dtrhigh;
+  }
+
+  @Override
+  public void setRTS(boolean hi) throws IOException {
+    rts = hi;
+  }
+
+  @Override
+  public void setDTR(boolean hi) throws IOException {
+    dtr = hi;
+  }
+
+  @Override
+  public int getCTS() throws IOException {
+    return rts ? 1 : 0;
+  }
+
+  @Override
+  public int getDSR() throws IOException {
+    return dtr ? 1 : 0;
+  }
+
+  @Override
+  public int getRI() throws IOException {
+    return ri ? 1 : 0;
+  }
+
+  @Override
+  public int getCD() throws IOException {
+    return dtr ? 1 : 0;
+  }
+
+  class VirtualInputStream extends InputStream {
+    final byte[] cbuf = new byte[1];
+
+    @Override
+    public int read() throws IOException {
+      int n = read(cbuf, 0, 1);
+      return n == 1 ? (cbuf[0] & 0xff) : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      synchronized (lock) {
+        long tmo = timeout;
+        long deadline = System.nanoTime() + tmo * 1000000L;
+        while (true) {
+          if (!open) {
+            return -1;
+          }
+          long now = System.nanoTime();
+          int n = poll(b, off, len, now);
+          if (n > 0) {
+            return n;
+          }
+          long wait = untilNext(now);
+          if (tmo > 0) {
+            if (now >= deadline) {
+              throw new SocketTimeoutException("Read timed out");
+            }
+            wait = wait < 0 ? deadline - now : Math.min(wait, deadline - now);
+          }
+          try {
+            if (wait < 0) {
+              lock.wait();
+            } else {
+              lock.wait(wait / 1000000L, (int)(wait % 1000000L));
+            }
+          } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+          }
+        }
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      synchronized (lock) {
+        if (MODE_RANDOM.equals(mode)) {
+          return 0;
+        }
+        long now = System.nanoTime();
+        int n = 0;
+        for (int i = 0; i < rxCount && rxTime[(rxHead + i) % RX_BUFFER_SIZE] <= now; i++) {
+          n++;
+        }
+        return n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      doDisconnect();
+    }
+  }
+
+  class VirtualOutputStream extends OutputStream {
+    final byte[] cbuf = new byte[1];
+
+    @Override
+    public void write(int b) throws IOException {
+      cbuf[0] = (byte)b;
+      write(cbuf, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (lock) {
+        if (!open) {
+          throw new IOException("Port closed");
+        }
+        long cn = charNanos();
+        long t = Math.max(System.nanoTime(), txLineFree);
+        for (int i = 0; i < len; i++) {
+          t += cn;
+          deviceReceive(b[off + i] & dataMask, t);
+        }
+        txLineFree = t;
+        lock.notifyAll();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      doDisconnect();
+    }
+  }
+}
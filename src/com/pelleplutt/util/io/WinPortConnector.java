@@ -16,6 +16,7 @@
 package com.pelleplutt.util.io;
 
 import java.io.IOException;
+import java.nio.channels.ByteChannel;
 
 /**
  * @todo check against LinuxPortConnector and extract super class
@@ -25,6 +26,8 @@ public class WinPortConnector extends PortConnector {
 
 	public void doConnect(Port portSetting) throws Exception {
 		UARTSocket winUartSocket = new WinSerialPortUARTSocket();
+		winUartSocket.profile = portSetting.profile;
+		winUartSocket.stats = stats;
 		port = (WinSerialPortUARTSocket)WinSerialPortUARTSocket.createServer(
 		    portSetting.portName, true, winUartSocket);
 		configure(portSetting);
@@ -37,6 +40,11 @@ public class WinPortConnector extends PortConnector {
 		port = null;  
 	}
 
+	@Override
+	public ByteChannel getChannel() {
+		return port == null ? null : port.getDataChannel();
+	}
+
 	@Override
 	protected void doSetTimeout(long timeout) throws IOException {
 		if (port != null) {
@@ -131,6 +139,7 @@ public class WinPortConnector extends PortConnector {
 			parity = LinuxSerialPortUARTSocket.PARITY_NONE;
 			break;
 		}
+		port.profile = portSetting.profile;
 		port.configure(baud, databits, parity, stopbits, portSetting.xonxoff, portSetting.rtscts, portSetting.dsrdtr,
 				timeout != 0 ? (timeout + 1000) : 0);
 	}